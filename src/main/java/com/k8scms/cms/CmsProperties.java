@@ -55,4 +55,38 @@ public interface CmsProperties {
 
     Long getMongoTimeout();
 
+    // seconds, the full scan of the watched models
+    Long getModelFullScanInterval();
+
+    // max number of documents of a cached collection
+    Integer getCollectionCacheMaxSize();
+
+    Integer getLogQueueSize();
+
+    Integer getLogBatchSize();
+
+    // milliseconds
+    Long getLogFlushInterval();
+
+    Integer getRelationCacheSize();
+
+    // seconds, the default of the relations without a cacheTtl
+    Long getRelationCacheTtl();
+
+    Integer getCredentialCacheSize();
+
+    // seconds
+    Long getCredentialCacheTtl();
+
+    Integer getAuthenticatedUserCacheSize();
+
+    // seconds
+    Long getAuthenticatedUserCacheTtl();
+
+    // re-encrypt the Jasypt secret2 values with AES-GCM, see SecretMigration
+    Boolean getSecretMigration();
+
+    // documents per collection on every run
+    Integer getSecretMigrationBatchSize();
+
 }
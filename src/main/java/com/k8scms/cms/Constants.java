@@ -38,6 +38,8 @@ public class Constants {
     public static final String ANSI_RED = "\u001B[31m";
     public static final String BASE_PATH_API = "/api";
     public static final String BASE_PATH_WEB_API = "/web-api";
+    // newline delimited json, used for streaming the GET results
+    public static final String MEDIA_TYPE_NDJSON = "application/x-ndjson";
 
     // the cookie name for auth
     public static final String COOKIE_UID = "UID";
@@ -50,6 +52,7 @@ public class Constants {
     public static final String CONTEXT_PROPERTY_USER_NAME = "CMS_USER_NAME";
     public static final String CONTEXT_PROPERTY_USER_ROLES = "CMS_USER_ROLES";
     public static final String CONTEXT_PROPERTY_USER_PERMISSIONS = "CMS_USER_PERMISSIONS";
+    public static final String CONTEXT_PROPERTY_USER_COMPILED_PERMISSIONS = "CMS_USER_COMPILED_PERMISSIONS";
     public static final String CONTEXT_PROPERTY_USER_FILTERS = "CMS_USER_FILTERS";
 
     public static final String QUERY_PARAM_SORT = "_sort";
@@ -57,6 +60,14 @@ public class Constants {
     public static final String QUERY_PARAM_LIMIT = "_limit";
     public static final String QUERY_PARAM_SKIP = "_skip";
     public static final String QUERY_PARAM_NO_LIMIT = "_noLimit";
+    // keyset pagination, empty for the first page or the token of the previous page
+    public static final String QUERY_PARAM_AFTER = "_after";
+    // comma separated (or array) names of the fields to return
+    public static final String QUERY_PARAM_FIELDS = "_fields";
+    // csv|xlsx|ndjson, for the export
+    public static final String QUERY_PARAM_FORMAT = "_format";
+    // the _after token of the next page
+    public static final String HEADER_NEXT_AFTER = "X-Next-After";
     // matches ${some text}, excluding '{', '}'
     public static final String REGEX_PROPERTIES_REPLACE = "\\$\\{[^\\{\\}]*\\}";
 
@@ -65,7 +76,10 @@ public class Constants {
             QUERY_PARAM_SORT_DIRECTION,
             QUERY_PARAM_LIMIT,
             QUERY_PARAM_SKIP,
-            QUERY_PARAM_NO_LIMIT
+            QUERY_PARAM_NO_LIMIT,
+            QUERY_PARAM_AFTER,
+            QUERY_PARAM_FIELDS,
+            QUERY_PARAM_FORMAT
     };
 
     public static final String REGEX_CRON = "^\\s*($|#|\\w+\\s*=|(\\?|\\*|(?:[0-5]?\\d)(?:(?:-|\\/|\\,)(?:[0-5]?\\d))?(?:,(?:[0-5]?\\d)(?:(?:-|\\/|\\,)(?:[0-5]?\\d))?)*)\\s+(\\?|\\*|(?:[0-5]?\\d)(?:(?:-|\\/|\\,)(?:[0-5]?\\d))?(?:,(?:[0-5]?\\d)(?:(?:-|\\/|\\,)(?:[0-5]?\\d))?)*)\\s+(\\?|\\*|(?:[01]?\\d|2[0-3])(?:(?:-|\\/|\\,)(?:[01]?\\d|2[0-3]))?(?:,(?:[01]?\\d|2[0-3])(?:(?:-|\\/|\\,)(?:[01]?\\d|2[0-3]))?)*)\\s+(\\?|\\*|(?:0?[1-9]|[12]\\d|3[01])(?:(?:-|\\/|\\,)(?:0?[1-9]|[12]\\d|3[01]))?(?:,(?:0?[1-9]|[12]\\d|3[01])(?:(?:-|\\/|\\,)(?:0?[1-9]|[12]\\d|3[01]))?)*)\\s+(\\?|\\*|(?:[1-9]|1[012])(?:(?:-|\\/|\\,)(?:[1-9]|1[012]))?(?:L|W)?(?:,(?:[1-9]|1[012])(?:(?:-|\\/|\\,)(?:[1-9]|1[012]))?(?:L|W)?)*|\\?|\\*|(?:JAN|FEB|MAR|APR|MAY|JUN|JUL|AUG|SEP|OCT|NOV|DEC)(?:(?:-)(?:JAN|FEB|MAR|APR|MAY|JUN|JUL|AUG|SEP|OCT|NOV|DEC))?(?:,(?:JAN|FEB|MAR|APR|MAY|JUN|JUL|AUG|SEP|OCT|NOV|DEC)(?:(?:-)(?:JAN|FEB|MAR|APR|MAY|JUN|JUL|AUG|SEP|OCT|NOV|DEC))?)*)\\s+(\\?|\\*|(?:[0-6])(?:(?:-|\\/|\\,|#)(?:[0-6]))?(?:L)?(?:,(?:[0-6])(?:(?:-|\\/|\\,|#)(?:[0-6]))?(?:L)?)*|\\?|\\*|(?:MON|TUE|WED|THU|FRI|SAT|SUN)(?:(?:-)(?:MON|TUE|WED|THU|FRI|SAT|SUN))?(?:,(?:MON|TUE|WED|THU|FRI|SAT|SUN)(?:(?:-)(?:MON|TUE|WED|THU|FRI|SAT|SUN))?)*)(|\\s)+(\\?|\\*|(?:|\\d{4})(?:(?:-|\\/|\\,)(?:|\\d{4}))?(?:,(?:|\\d{4})(?:(?:-|\\/|\\,)(?:|\\d{4}))?)*))$";
@@ -33,8 +33,14 @@ public interface SecretProperties {
 
     int getSessionTimeout();
 
+    // false (the default) keeps issuing the older (Jasypt) cookies that every version reads, true once all the nodes read the tokens
+    boolean getSessionTokenV2();
+
     String getSecretEncryptionKey();
 
+    // false (the default) keeps writing the older (Jasypt) secret2 values that every version reads, true once all the nodes read AES-GCM
+    boolean getSecret2V2();
+
     String getLdapUrl();
 
     Optional<String> getLdapProtocol();
@@ -25,12 +25,21 @@ package com.k8scms.cms.filter;
 import com.k8scms.cms.CmsProperties;
 import com.k8scms.cms.Constants;
 import com.k8scms.cms.SecretProperties;
+import com.k8scms.cms.model.AuthenticatedUser;
 import com.k8scms.cms.model.Filter;
 import com.k8scms.cms.model.GetOptions;
 import com.k8scms.cms.model.Permissions;
 import com.k8scms.cms.mongo.MongoService;
+import com.k8scms.cms.service.AuthenticatedUserCache;
+import com.k8scms.cms.service.CredentialCache;
+import com.k8scms.cms.service.SessionTokens;
+import com.k8scms.cms.utils.CryptoExecutor;
 import com.k8scms.cms.utils.Utils;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
 import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.jboss.resteasy.core.interception.jaxrs.SuspendableContainerRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,34 +70,65 @@ public class ApiLocalAuthentication implements ContainerRequestFilter {
     @Inject
     MongoService mongoService;
 
+    @Inject
+    CredentialCache credentialCache;
+
+    @Inject
+    AuthenticatedUserCache authenticatedUserCache;
+
+    @Inject
+    SessionTokens sessionTokens;
+
+    /**
+     * The cached users with a verified local password are authenticated on the request thread. Otherwise the request
+     * is suspended while the user and the roles are read and resumed when they are found, no thread waits for mongo.
+     * The bcrypt check runs on the crypto executor and the LDAP check on a worker thread, also for the cached users.
+     */
     @Override
     public void filter(ContainerRequestContext containerRequestContext) {
         String[] userNamePass = getBasicAuthUserPass(containerRequestContext);
         if (userNamePass != null) {
-            GetOptions getOptions = new GetOptions();
-            getOptions.setLimit(1);
-            Document user = mongoService.get(
-                    cmsProperties.getCluster(),
-                    cmsProperties.getDatabase(),
-                    cmsProperties.getCollectionUser(),
-                    Utils.getUserFilter(userNamePass[0]),
-                    getOptions)
-                    .toUni()
-                    .await()
-                    .indefinitely();
-            String securityRealm = user.getString("securityRealm");
-            switch (securityRealm) {
-                case Constants.SECURITY_REALM_LOCAL:
-                    if (!Utils.checkEncrypt1(userNamePass[1], secretProperties.getSecretEncryptionKey(), (String) user.get("password"))) {
-                        throw Utils.generateUnauthorizedException("Invalid password", cmsProperties.getEnv());
-                    }
-                    break;
-                case Constants.SECURITY_REALM_LDAP:
-                    Utils.checkLdapUser(userNamePass[0], userNamePass[1], cmsProperties, secretProperties);
-                default:
-                    throw Utils.generateUnauthorizedException(String.format("Invalid security realm '%s'", securityRealm), cmsProperties.getEnv());
+            // names are case insensitive
+            String session = "basic:" + userNamePass[0].toLowerCase();
+            AuthenticatedUser authenticatedUser = authenticatedUserCache.get(session);
+            if (authenticatedUser != null) {
+                Document user = authenticatedUser.getUser();
+                if (!Constants.SECURITY_REALM_LOCAL.equals(user.getString("securityRealm"))) {
+                    // the LDAP check blocks, it runs on a worker thread while the request is suspended
+                    resumeAuthenticated(Uni.createFrom().item(authenticatedUser)
+                                    .emitOn(Infrastructure.getDefaultWorkerPool())
+                                    .invoke(u -> checkPassword(user, userNamePass)),
+                            session,
+                            containerRequestContext);
+                } else if (!credentialCache.isVerified(user, userNamePass[1])) {
+                    // bcrypt on the crypto executor, the request is suspended meanwhile
+                    resumeAuthenticated(CryptoExecutor.submit(() -> {
+                                checkPassword(user, userNamePass);
+                                return authenticatedUser;
+                            }),
+                            session,
+                            containerRequestContext);
+                } else {
+                    // verified before, no bcrypt
+                    initContext(authenticatedUser, containerRequestContext);
+                }
+            } else {
+                // not on the virtual threads, the LDAP check would pin them
+                resume(findUser(userNamePass[0])
+                                .onItem().transformToUni(user -> {
+                                    if (Constants.SECURITY_REALM_LOCAL.equals(user.getString("securityRealm"))) {
+                                        return CryptoExecutor.submit(() -> {
+                                            checkPassword(user, userNamePass);
+                                            return user;
+                                        });
+                                    }
+                                    return Uni.createFrom().item(user)
+                                            .emitOn(Infrastructure.getDefaultWorkerPool())
+                                            .invoke(u -> checkPassword(u, userNamePass));
+                                }),
+                        session,
+                        containerRequestContext);
             }
-            initContext(user, containerRequestContext);
         } else {
             Cookie uidCookie = containerRequestContext.getCookies().get(Constants.COOKIE_UID);
             String[] tokens = null;
@@ -98,7 +138,17 @@ public class ApiLocalAuthentication implements ContainerRequestFilter {
                 String uid = uidCookie.getValue();
                 if (uid == null) {
                     throw Utils.generateUnauthorizedException("Cookie value is missing", cmsProperties.getEnv());
+                } else if (SessionTokens.isToken(uid)) {
+                    ObjectId userId = sessionTokens.verify(uid);
+                    AuthenticatedUser authenticatedUser = authenticatedUserCache.get(uid);
+                    if (authenticatedUser != null) {
+                        initContext(authenticatedUser, containerRequestContext);
+                    } else {
+                        resume(findUser(userId), uid, containerRequestContext);
+                    }
                 } else {
+                    // the older cookies, until they expire
+                    String session = uid;
                     uid = new String(Base64.getDecoder().decode(uid));
                     tokens = uid.split("\\.");
                     if (tokens.length != 3) {
@@ -112,63 +162,129 @@ public class ApiLocalAuthentication implements ContainerRequestFilter {
                                 - loginDate.getTime() > secretProperties.getSessionTimeout() * 1000) {
                             throw Utils.generateUnauthorizedException("Cookie timed out", cmsProperties.getEnv());
                         }
-                        Document decryptedUser = Document.parse(Utils.decrypt2(encryptedUser, secretProperties.getSessionEncryptionKey() + "." + random));
-                        logger.trace("Decrypted user from cookie: {}", decryptedUser);
-                        GetOptions getOptions = new GetOptions();
-                        getOptions.setLimit(1);
-                        Document user = mongoService.get(
-                                cmsProperties.getCluster(),
-                                cmsProperties.getDatabase(),
-                                cmsProperties.getCollectionUser(),
-                                Utils.getUserFilter(decryptedUser.getString("name")),
-                                getOptions)
-                                .toUni()
-                                .await()
-                                .indefinitely();
-                        if (user == null) {
-                            throw Utils.generateUnauthorizedException(String.format("User %s not found in %s.%s.%s", decryptedUser.get("name"), cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionUser()), cmsProperties.getEnv());
+                        AuthenticatedUser authenticatedUser = authenticatedUserCache.get(session);
+                        if (authenticatedUser != null) {
+                            initContext(authenticatedUser, containerRequestContext);
+                        } else {
+                            Document decryptedUser = Document.parse(Utils.decrypt2(encryptedUser, secretProperties.getSessionEncryptionKey() + "." + random));
+                            logger.trace("Decrypted user from cookie: {}", decryptedUser);
+                            resume(findUser(decryptedUser.getString("name")), session, containerRequestContext);
                         }
-                        initContext(user, containerRequestContext);
                     }
                 }
             }
         }
     }
 
-    private void initContext(Document user, ContainerRequestContext containerRequestContext) {
-        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER, user);
-        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER_NAME, user.getString("name"));
+    private Uni<Document> findUser(String name) {
+        return findUser(Utils.getUserFilter(name), Utils.getUserGetOptions(), name);
+    }
+
+    private Uni<Document> findUser(ObjectId userId) {
+        GetOptions getOptions = new GetOptions();
+        getOptions.setLimit(1);
+        return findUser(new Document("_id", userId), getOptions, userId.toHexString());
+    }
+
+    private Uni<Document> findUser(Document filter, GetOptions getOptions, String user) {
+        return mongoService.get(
+                cmsProperties.getCluster(),
+                cmsProperties.getDatabase(),
+                cmsProperties.getCollectionUser(),
+                filter,
+                getOptions)
+                .toUni()
+                .map(document -> {
+                    if (document == null) {
+                        throw Utils.generateUnauthorizedException(String.format("User %s not found in %s.%s.%s", user, cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionUser()), cmsProperties.getEnv());
+                    }
+                    return document;
+                });
+    }
+
+    private void checkPassword(Document user, String[] userNamePass) {
+        String securityRealm = user.getString("securityRealm");
+        switch (securityRealm) {
+            case Constants.SECURITY_REALM_LOCAL:
+                // bcrypt is slow on purpose, do not repeat it for every request of the same user/password
+                if (!credentialCache.isVerified(user, userNamePass[1])) {
+                    if (!Utils.checkEncrypt1(userNamePass[1], secretProperties.getSecretEncryptionKey(), (String) user.get("password"))) {
+                        throw Utils.generateUnauthorizedException("Invalid password", cmsProperties.getEnv());
+                    }
+                    credentialCache.setVerified(user, userNamePass[1]);
+                }
+                break;
+            case Constants.SECURITY_REALM_LDAP:
+                Utils.checkLdapUser(userNamePass[0], userNamePass[1], cmsProperties, secretProperties);
+            default:
+                throw Utils.generateUnauthorizedException(String.format("Invalid security realm '%s'", securityRealm), cmsProperties.getEnv());
+        }
+    }
+
+    /**
+     * Suspends the request until the user is authenticated, the failures are mapped like the ones thrown by the filter.
+     * The request resumes, with the user or the failure, on a worker thread: the rest of the chain and the resource
+     * method may block, they never run on the threads of the mongo driver or of the crypto executor.
+     */
+    private void resume(Uni<Document> user, String session, ContainerRequestContext containerRequestContext) {
+        resumeAuthenticated(user.onItem().transformToUni(this::loadAuthenticatedUser), session, containerRequestContext);
+    }
+
+    // like resume, for a user whose roles are already resolved
+    private void resumeAuthenticated(Uni<AuthenticatedUser> authenticated, String session, ContainerRequestContext containerRequestContext) {
+        SuspendableContainerRequestContext suspendableContext = (SuspendableContainerRequestContext) containerRequestContext;
+        long generation = authenticatedUserCache.getGeneration();
+        suspendableContext.suspend();
+        authenticated
+                .emitOn(Infrastructure.getDefaultWorkerPool())
+                .subscribe()
+                .with(authenticatedUser -> {
+                    authenticatedUserCache.put(session, authenticatedUser, generation);
+                    initContext(authenticatedUser, containerRequestContext);
+                    suspendableContext.resume();
+                }, suspendableContext::resume);
+    }
+
+    private Uni<AuthenticatedUser> loadAuthenticatedUser(Document user) {
         // find roles
         Document inFilter = new Document();
         inFilter.put("$in", user.get("roles") != null ? user.get("roles") : new ArrayList<>());
         Document rolesFilter = new Document();
         rolesFilter.put("name", inFilter);
-        List<Document> roles = mongoService.get(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionRole(), rolesFilter)
+        return mongoService.get(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionRole(), rolesFilter)
                 .collectItems().asList()
-                .await()
-                .indefinitely();
-        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER_ROLES, roles);
-
-        List<Permissions> permissions = roles.stream()
-                .map(document -> document.getList("permissions", Document.class))
-                .flatMap(List::stream)
-                .map(Permissions::new)
-                .collect(Collectors.toList());
-        // add the user defined permissions
-        Optional.ofNullable(user.getList("permissions", Document.class))
-                .ifPresent(documents -> documents.forEach(document -> permissions.add(new Permissions(document))));
-        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER_PERMISSIONS, permissions);
-
-        List<Filter> filters = roles.stream()
-                .map(document -> document.getList("filters", Document.class))
-                .filter(Objects::nonNull)
-                .flatMap(List::stream)
-                .map(Filter::new)
-                .collect(Collectors.toList());
-        // add the user defined permissions
-        Optional.ofNullable(user.getList("filters", Document.class))
-                .ifPresent(documents -> documents.forEach(document -> filters.add(new Filter(document))));
-        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER_FILTERS, filters);
+                .map(roles -> {
+                    List<Permissions> permissions = roles.stream()
+                            .map(document -> document.getList("permissions", Document.class))
+                            .flatMap(List::stream)
+                            .map(Permissions::new)
+                            .collect(Collectors.toList());
+                    // add the user defined permissions
+                    Optional.ofNullable(user.getList("permissions", Document.class))
+                            .ifPresent(documents -> documents.forEach(document -> permissions.add(new Permissions(document))));
+
+                    List<Filter> filters = roles.stream()
+                            .map(document -> document.getList("filters", Document.class))
+                            .filter(Objects::nonNull)
+                            .flatMap(List::stream)
+                            .map(Filter::new)
+                            .collect(Collectors.toList());
+                    // add the user defined permissions
+                    Optional.ofNullable(user.getList("filters", Document.class))
+                            .ifPresent(documents -> documents.forEach(document -> filters.add(new Filter(document))));
+                    return new AuthenticatedUser(user, roles, permissions, filters);
+                });
+    }
+
+    private void initContext(AuthenticatedUser authenticatedUser, ContainerRequestContext containerRequestContext) {
+        // the resources change the user document (e.g. toWire), never hand out the cached one
+        Document user = Utils.deepCopy(authenticatedUser.getUser());
+        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER, user);
+        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER_NAME, user.getString("name"));
+        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER_ROLES, authenticatedUser.getRoles());
+        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER_PERMISSIONS, authenticatedUser.getPermissions());
+        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER_COMPILED_PERMISSIONS, authenticatedUser.getCompiledPermissions());
+        containerRequestContext.setProperty(Constants.CONTEXT_PROPERTY_USER_FILTERS, authenticatedUser.getFilters());
     }
 
     public static String[] getBasicAuthUserPass(ContainerRequestContext containerRequestContext) {
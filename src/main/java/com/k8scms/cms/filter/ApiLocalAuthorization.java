@@ -24,9 +24,8 @@ package com.k8scms.cms.filter;
 
 import com.k8scms.cms.CmsProperties;
 import com.k8scms.cms.Constants;
-import com.k8scms.cms.model.Permissions;
+import com.k8scms.cms.model.CompiledPermissions;
 import com.k8scms.cms.resource.ApiResource;
-import com.k8scms.cms.utils.Utils;
 import io.quarkus.security.UnauthorizedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +38,6 @@ import javax.ws.rs.container.ContainerRequestFilter;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.Provider;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Optional;
 
 @Provider
@@ -54,7 +52,7 @@ public class ApiLocalAuthorization implements ContainerRequestFilter {
 
     @Override
     public void filter(ContainerRequestContext containerRequestContext) {
-        List<Permissions> permissions = (List<Permissions>) containerRequestContext.getProperty(Constants.CONTEXT_PROPERTY_USER_PERMISSIONS);
+        CompiledPermissions permissions = (CompiledPermissions) containerRequestContext.getProperty(Constants.CONTEXT_PROPERTY_USER_COMPILED_PERMISSIONS);
 
         MultivaluedMap<String, String> pathParameters = containerRequestContext.getUriInfo().getPathParameters();
         String cluster = Optional.ofNullable(pathParameters.get(ApiResource.PATH_PARAM_CLUSTER))
@@ -69,7 +67,7 @@ public class ApiLocalAuthorization implements ContainerRequestFilter {
         if (containerRequestContext.getUriInfo().getPath().endsWith("/GET")) {
             method = "GET";
         }
-        if (!Utils.hasPermission(cluster, database, collection, method, permissions)) {
+        if (!permissions.hasPermission(cluster, database, collection, method)) {
             throw new UnauthorizedException("User not in role");
         }
     }
@@ -25,32 +25,36 @@ package com.k8scms.cms.filter;
 import com.k8scms.cms.CmsProperties;
 import com.k8scms.cms.Constants;
 import com.k8scms.cms.resource.ApiResource;
+import com.k8scms.cms.resource.DataFilter;
 import com.k8scms.cms.service.LogService;
+import com.k8scms.cms.utils.Utils;
 import org.bson.Document;
+import org.jboss.resteasy.spi.HttpRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Priority;
 import javax.inject.Inject;
 import javax.ws.rs.Priorities;
-import javax.ws.rs.container.ContainerRequestContext;
-import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.Provider;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
-
+// logs the body after it is deserialized for the resource method, the body is parsed only once
 @Provider
 @Priority(Priorities.USER)
 @ApiLoggingFilter
-public class ApiLogging implements ContainerRequestFilter {
+public class ApiLogging implements ReaderInterceptor {
 
     private static final Logger log = LoggerFactory.getLogger(ApiLogging.class);
 
@@ -60,11 +64,17 @@ public class ApiLogging implements ContainerRequestFilter {
     @Inject
     LogService logService;
 
+    @Context
+    UriInfo uriInfo;
+
+    @Context
+    HttpRequest httpRequest;
+
     @Override
-    public void filter(ContainerRequestContext containerRequestContext) {
-        Document user = (Document) containerRequestContext.getProperty(Constants.CONTEXT_PROPERTY_USER);
+    public Object aroundReadFrom(ReaderInterceptorContext readerInterceptorContext) throws IOException {
+        Object entity = readerInterceptorContext.proceed();
 
-        MultivaluedMap<String, String> pathParameters = containerRequestContext.getUriInfo().getPathParameters();
+        MultivaluedMap<String, String> pathParameters = uriInfo.getPathParameters();
         String cluster = Optional.ofNullable(pathParameters.get(ApiResource.PATH_PARAM_CLUSTER))
                 .orElse(Arrays.asList(cmsProperties.getCluster()))
                 .stream().findAny().get();
@@ -73,39 +83,49 @@ public class ApiLogging implements ContainerRequestFilter {
                 .stream().findAny().get();
         String collection = pathParameters.get(ApiResource.PATH_PARAM_COLLECTION).stream().findAny()
                 .orElseThrow(() -> new IllegalArgumentException("path param " + ApiResource.PATH_PARAM_COLLECTION + " not found"));
-        String method = containerRequestContext.getMethod();
+        String method = httpRequest.getHttpMethod();
         // TODO this is not very elegant
-        if (containerRequestContext.getUriInfo().getPath().endsWith("/GET")) {
+        if (uriInfo.getPath().endsWith("/GET")) {
             method = "GET";
         }
-        String body = new BufferedReader(new InputStreamReader(containerRequestContext.getEntityStream(), StandardCharsets.UTF_8))
-                .lines().collect(Collectors.joining("\n"));
-        containerRequestContext.setEntityStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        String userName = (String) readerInterceptorContext.getProperty(Constants.CONTEXT_PROPERTY_USER_NAME);
 
-        Object bodyObject = null;
-        if (!body.isEmpty()) {
-            bodyObject = Document.parse("{\"json\":" + body + "}").get("json");
-        }
-        if (bodyObject instanceof Document) {
+        if (entity instanceof Map) {
             logService.log(
                     cluster,
                     database,
                     collection,
                     method,
-                    // bodyObject instanceof Document?(Document) bodyObject: (List<Document>)bodyObject,
-                    (Document) bodyObject,
-                    user.getString("name"),
-                    containerRequestContext.getUriInfo());
-        } else if (bodyObject instanceof List){
+                    toLogDocument(entity),
+                    userName,
+                    uriInfo);
+        } else if (entity instanceof List) {
             logService.log(
                     cluster,
                     database,
                     collection,
                     method,
-                    // bodyObject instanceof Document?(Document) bodyObject: (List<Document>)bodyObject,
-                    (List<Document>) bodyObject,
-                    user.getString("name"),
-                    containerRequestContext.getUriInfo());
+                    ((List<?>) entity).stream()
+                            .map(this::toLogDocument)
+                            .filter(Objects::nonNull)
+                            .collect(Collectors.toList()),
+                    userName,
+                    uriInfo);
+        }
+        return entity;
+    }
+
+    // a deep copy, the secrets are masked on it and the resource changes the entity in place before the log is written
+    private Document toLogDocument(Object object) {
+        if (object instanceof Map) {
+            return Utils.deepCopy(new Document((Map<String, Object>) object));
+        } else if (object instanceof DataFilter) {
+            DataFilter dataFilter = (DataFilter) object;
+            Document document = new Document();
+            document.put("data", dataFilter.getData() != null ? Utils.deepCopy(dataFilter.getData()) : null);
+            document.put("filter", dataFilter.getFilter() != null ? Utils.deepCopy(dataFilter.getFilter()) : null);
+            return document;
         }
+        return null;
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.model;
+
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * The user of a request along with the roles, permissions and filters resolved from the user and the roles. The
+ * permissions are compiled once for all the requests of the user.
+ */
+public class AuthenticatedUser {
+    private final Document user;
+    private final List<Document> roles;
+    private final List<Permissions> permissions;
+    private final List<Filter> filters;
+    private final CompiledPermissions compiledPermissions;
+
+    public AuthenticatedUser(Document user, List<Document> roles, List<Permissions> permissions, List<Filter> filters) {
+        this.user = user;
+        this.roles = roles;
+        this.permissions = permissions;
+        this.filters = filters;
+        this.compiledPermissions = new CompiledPermissions(permissions);
+    }
+
+    public Document getUser() {
+        return user;
+    }
+
+    public List<Document> getRoles() {
+        return roles;
+    }
+
+    public List<Permissions> getPermissions() {
+        return permissions;
+    }
+
+    public List<Filter> getFilters() {
+        return filters;
+    }
+
+    public CompiledPermissions getCompiledPermissions() {
+        return compiledPermissions;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.model;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+/**
+ * The read only view of a {@link Model} that is used on every document, the fields by name, the compiled regular
+ * expressions and charsets, the relation filter templates and the lists of the special fields. It is built once for every
+ * model version.
+ */
+public class CompiledModel {
+
+    private final Map<String, Field> fields;
+    private final Map<String, Pattern> regexes;
+    private final Map<String, ThreadLocal<CharsetEncoder>> encoders;
+    private final List<Field> idFields;
+    private final List<Field> requiredFields;
+    private final List<Field> relationFields;
+    private final List<Field> virtualFields;
+    private final List<Field> secretFields;
+    private final Map<String, RelationTemplate> relationTemplates;
+
+    public CompiledModel(Model model) {
+        List<Field> modelFields = Optional.ofNullable(model.getFields()).orElse(Collections.emptyList());
+        Map<String, Field> fieldsMap = new HashMap<>();
+        Map<String, Pattern> regexesMap = new HashMap<>();
+        Map<String, ThreadLocal<CharsetEncoder>> encodersMap = new HashMap<>();
+        for (Field field : modelFields) {
+            // keep the first one, like the linear search did
+            fieldsMap.putIfAbsent(field.getName(), field);
+            if (field.getRegex() != null) {
+                try {
+                    regexesMap.put(field.getName(), Pattern.compile(field.getRegex()));
+                } catch (PatternSyntaxException e) {
+                    // reported when a value is validated
+                }
+            }
+            if (field.getCharset() != null) {
+                try {
+                    Charset charset = Charset.forName(field.getCharset());
+                    // encoders are not thread safe
+                    encodersMap.put(field.getName(), ThreadLocal.withInitial(charset::newEncoder));
+                } catch (IllegalArgumentException e) {
+                    // reported when a value is validated
+                }
+            }
+        }
+        fields = Collections.unmodifiableMap(fieldsMap);
+        regexes = Collections.unmodifiableMap(regexesMap);
+        encoders = Collections.unmodifiableMap(encodersMap);
+        idFields = filter(modelFields, Field::isId);
+        // not for relations and virtual fields. Relations error are reported in _meta.RelationErrors
+        requiredFields = filter(modelFields, field -> field.getRequired() && field.getRelation() == null && field.getVirtual() == null);
+        relationFields = filter(modelFields, field -> field.getRelation() != null);
+        virtualFields = filter(modelFields, field -> field.getVirtual() != null);
+        secretFields = filter(modelFields, field -> field.getEncryption() != null);
+        // the placeholders of the relation filters are the fields that are not relations
+        List<String> valueFieldNames = modelFields.stream()
+                .filter(field -> field.getRelation() == null)
+                .map(Field::getName)
+                .collect(Collectors.toList());
+        Map<String, RelationTemplate> relationTemplatesMap = new HashMap<>();
+        for (Field field : relationFields) {
+            relationTemplatesMap.putIfAbsent(field.getName(), new RelationTemplate(field.getRelation().getFilter(), valueFieldNames,
+                    Boolean.TRUE.equals(field.getRelation().getTypedValues())));
+        }
+        relationTemplates = Collections.unmodifiableMap(relationTemplatesMap);
+    }
+
+    private static List<Field> filter(List<Field> fields, Predicate<Field> predicate) {
+        return Collections.unmodifiableList(fields.stream().filter(predicate).collect(Collectors.toList()));
+    }
+
+    public Field getField(String name) {
+        return fields.getOrDefault(name, Field.DEFAULT);
+    }
+
+    /**
+     * @return the compiled regex of the field, null if the field has no regex or the regex is not valid
+     */
+    public Pattern getRegex(String name) {
+        return regexes.get(name);
+    }
+
+    /**
+     * @return the encoder of the field's charset for the current thread, null if the field has no charset or the
+     * charset is not supported
+     */
+    public CharsetEncoder getEncoder(String name) {
+        ThreadLocal<CharsetEncoder> encoder = encoders.get(name);
+        return encoder == null ? null : encoder.get();
+    }
+
+    public List<Field> getIdFields() {
+        return idFields;
+    }
+
+    public List<Field> getRequiredFields() {
+        return requiredFields;
+    }
+
+    public List<Field> getRelationFields() {
+        return relationFields;
+    }
+
+    public List<Field> getVirtualFields() {
+        return virtualFields;
+    }
+
+    public RelationTemplate getRelationTemplate(String name) {
+        return relationTemplates.get(name);
+    }
+
+    public List<Field> getSecretFields() {
+        return secretFields;
+    }
+
+    public boolean hasSecrets() {
+        return !secretFields.isEmpty();
+    }
+
+    public boolean hasRelations() {
+        return !relationFields.isEmpty();
+    }
+
+    public boolean hasRequired() {
+        return !requiredFields.isEmpty();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The permissions of a user with their regular expressions compiled once, along with the decisions already taken by
+ * cluster, database, collection and method. It lives as long as its {@link AuthenticatedUser}, which is dropped when
+ * the users or the roles change.
+ */
+public class CompiledPermissions {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledPermissions.class);
+
+    // the decisions of a user are as many as the models and methods, the limit is for made up paths
+    private static final int MAX_DECISIONS = 1000;
+
+    private final List<Pattern[]> patterns;
+    private final Map<List<String>, Boolean> decisions = new ConcurrentHashMap<>();
+
+    public CompiledPermissions(List<Permissions> permissionsList) {
+        List<Pattern[]> patternsList = new ArrayList<>();
+        for (Permissions permissions : permissionsList) {
+            try {
+                patternsList.add(new Pattern[]{
+                        Pattern.compile(permissions.getCluster()),
+                        Pattern.compile(permissions.getDatabase()),
+                        Pattern.compile(permissions.getCollection()),
+                        Pattern.compile(permissions.getMethod())
+                });
+            } catch (PatternSyntaxException | NullPointerException e) {
+                // it never matches
+                logger.warn("Invalid permissions {}:{}:{}:{}, {}", permissions.getCluster(), permissions.getDatabase(), permissions.getCollection(), permissions.getMethod(), e.getMessage());
+            }
+        }
+        patterns = Collections.unmodifiableList(patternsList);
+    }
+
+    public boolean hasPermission(String cluster, String database, String collection, String method) {
+        // the parts may be null e.g. a model without a database, List.of rejects them
+        List<String> key = Arrays.asList(cluster, database, collection, method);
+        Boolean decision = decisions.get(key);
+        if (decision == null) {
+            decision = patterns.stream().anyMatch(p -> p[0].matcher(cluster).matches()
+                    && p[1].matcher(database).matches()
+                    && p[2].matcher(collection).matches()
+                    && p[3].matcher(method).matches());
+            if (decisions.size() < MAX_DECISIONS) {
+                decisions.put(key, decision);
+            }
+        }
+        return decision;
+    }
+}
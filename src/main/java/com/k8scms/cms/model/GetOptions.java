@@ -22,12 +22,26 @@
 
 package com.k8scms.cms.model;
 
+import com.mongodb.client.model.Collation;
+import org.bson.Document;
+
+import java.util.List;
+
 public class GetOptions {
     private String sort;
     private Integer sortDirection;
     private Integer limit;
     private Integer skip;
     private boolean noLimit;
+    private boolean keyset;
+    // the decoded _after token, null for the first page
+    private Document after;
+    // the requested fields, null for all
+    private List<String> fields;
+    // the stored fields to read for the requested fields
+    private Document projection;
+    // e.g. case insensitive matching, it has to be the collation of an index to use it
+    private Collation collation;
 
     public String getSort() {
         return sort;
@@ -68,4 +82,44 @@ public class GetOptions {
     public void setNoLimit(Boolean noLimit) {
         this.noLimit = noLimit;
     }
+
+    public boolean isKeyset() {
+        return keyset;
+    }
+
+    public void setKeyset(boolean keyset) {
+        this.keyset = keyset;
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(List<String> fields) {
+        this.fields = fields;
+    }
+
+    public Document getProjection() {
+        return projection;
+    }
+
+    public void setProjection(Document projection) {
+        this.projection = projection;
+    }
+
+    public Document getAfter() {
+        return after;
+    }
+
+    public void setAfter(Document after) {
+        this.after = after;
+    }
+
+    public Collation getCollation() {
+        return collation;
+    }
+
+    public void setCollation(Collation collation) {
+        this.collation = collation;
+    }
 }
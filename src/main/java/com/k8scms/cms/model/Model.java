@@ -22,6 +22,7 @@
 
 package com.k8scms.cms.model;
 
+import javax.json.bind.annotation.JsonbTransient;
 import java.util.List;
 
 public class Model {
@@ -32,6 +33,9 @@ public class Model {
     private List<Field> fields;
     private List<ModelIndex> indexes;
     private List<SystemField> systemFields;
+    // keep the whole collection in memory, for small reference collections
+    private boolean cached;
+    private CompiledModel compiled;
 
     public Model() {
     }
@@ -91,4 +95,26 @@ public class Model {
     public void setSystemFields(List<SystemField> systemFields) {
         this.systemFields = systemFields;
     }
+
+    public boolean getCached() {
+        return cached;
+    }
+
+    public void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    // builds the lookups of the current fields, call it after the model is loaded
+    public Model compile() {
+        compiled = new CompiledModel(this);
+        return this;
+    }
+
+    @JsonbTransient
+    public CompiledModel getCompiled() {
+        if (compiled == null) {
+            compile();
+        }
+        return compiled;
+    }
 }
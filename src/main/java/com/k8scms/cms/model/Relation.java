@@ -29,6 +29,10 @@ public class Relation {
     private String database;
     private String collection;
     private String filter;
+    // seconds the results of the filter are cached, null for cms.relation-cache-ttl
+    private Integer cacheTtl;
+    // true binds the values of the filter with their types, otherwise the numbers and booleans are strings like before
+    private Boolean typedValues;
 
     public Relation() {
     }
@@ -39,6 +43,8 @@ public class Relation {
         database = document.getString("database");
         collection = document.getString("collection");
         filter = document.getString("filter");
+        cacheTtl = document.getInteger("cacheTtl");
+        typedValues = document.getBoolean("typedValues");
     }
 
     public String getCluster() {
@@ -72,4 +78,20 @@ public class Relation {
     public void setFilter(String filter) {
         this.filter = filter;
     }
+
+    public Integer getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public void setCacheTtl(Integer cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    public Boolean getTypedValues() {
+        return typedValues;
+    }
+
+    public void setTypedValues(Boolean typedValues) {
+        this.typedValues = typedValues;
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.model;
+
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The filter of a {@link Relation} compiled once for every model version, e.g. {'name':{'$in':[{names}]}}. The
+ * placeholders of the fields become slots of the parsed filter and a document's values are bound to them, a list in
+ * an array is spliced into it. Like the older text replacement the numbers and the booleans are bound as strings, the
+ * object ids, dates and decimals keep their type, with typed values all of them keep their type. A filter that does
+ * not parse with slots (e.g. a placeholder in a quoted string) is still resolved by replacing the text and parsing it
+ * for every document.
+ */
+public class RelationTemplate {
+
+    // a string value of the parsed filter that stands for a slot, followed by the slot index
+    private static final String SLOT = "\u0000cms-slot-";
+    private static final String SLOT_TEXT = "'\\u0000cms-slot-%d'";
+
+    private final String filter;
+    // the field names of the slots by index
+    private final List<String> slots;
+    // null when the text is replaced
+    private final Document template;
+    private final Map<String, Pattern> placeholders;
+    private final boolean typedValues;
+
+    public RelationTemplate(String filter, Collection<String> fieldNames) {
+        this(filter, fieldNames, false);
+    }
+
+    public RelationTemplate(String filter, Collection<String> fieldNames, boolean typedValues) {
+        this.filter = filter;
+        this.typedValues = typedValues;
+        List<String> slotsList = new ArrayList<>();
+        Map<String, Pattern> placeholdersMap = new LinkedHashMap<>();
+        String text = filter;
+        for (String fieldName : fieldNames) {
+            String placeholder = "{" + fieldName + "}";
+            if (text.contains(placeholder)) {
+                text = text.replace(placeholder, String.format(SLOT_TEXT, slotsList.size()));
+                slotsList.add(fieldName);
+                placeholdersMap.put(fieldName, Pattern.compile(Pattern.quote(placeholder)));
+            }
+        }
+        Document parsed;
+        try {
+            parsed = Document.parse(text);
+            if (hasSlotKey(parsed)) {
+                parsed = null;
+            }
+        } catch (RuntimeException e) {
+            parsed = null;
+        }
+        slots = Collections.unmodifiableList(slotsList);
+        template = parsed;
+        placeholders = parsed == null ? Collections.unmodifiableMap(placeholdersMap) : Collections.emptyMap();
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return true if the filter depends on the values of the documents
+     */
+    public boolean hasSlots() {
+        return !slots.isEmpty();
+    }
+
+    /**
+     * @return a new filter with the values of the document
+     */
+    public Document bind(Document document) {
+        if (template == null) {
+            String text = filter;
+            for (Map.Entry<String, Pattern> entry : placeholders.entrySet()) {
+                text = entry.getValue().matcher(text).replaceAll(Matcher.quoteReplacement(toQuery(document.get(entry.getKey()))));
+            }
+            return Document.parse(text);
+        }
+        return (Document) bind(template, document);
+    }
+
+    private Object bind(Object value, Document document) {
+        if (value instanceof Document) {
+            Document bound = new Document();
+            ((Document) value).forEach((key, v) -> bound.put(key, bind(v, document)));
+            return bound;
+        } else if (value instanceof List) {
+            List<Object> bound = new ArrayList<>();
+            for (Object v : (List<Object>) value) {
+                Object b = bind(v, document);
+                if (isSlot(v) && b instanceof List) {
+                    bound.addAll((List<Object>) b);
+                } else {
+                    bound.add(b);
+                }
+            }
+            return bound;
+        } else if (isSlot(value)) {
+            Object bound = document.get(slots.get(Integer.parseInt(((String) value).substring(SLOT.length()))));
+            return typedValues ? bound : toQueryValue(bound);
+        }
+        return value;
+    }
+
+    // the value that the text replacement gives, see toQuery
+    private static Object toQueryValue(Object object) {
+        if (object == null || object instanceof ObjectId || object instanceof Date || object instanceof Decimal128) {
+            return object;
+        } else if (object instanceof List) {
+            return ((List<Object>) object).stream()
+                    .map(RelationTemplate::toQueryValue)
+                    .collect(Collectors.toList());
+        }
+        return object.toString();
+    }
+
+    private static boolean isSlot(Object value) {
+        return value instanceof String && ((String) value).startsWith(SLOT);
+    }
+
+    private static boolean hasSlotKey(Object value) {
+        if (value instanceof Document) {
+            for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+                if (entry.getKey().contains(SLOT) || hasSlotKey(entry.getValue())) {
+                    return true;
+                }
+            }
+        } else if (value instanceof List) {
+            return ((List<Object>) value).stream().anyMatch(RelationTemplate::hasSlotKey);
+        }
+        return false;
+    }
+
+    private static String toQuery(Object object) {
+        if (object == null) {
+            return "null";
+        } else if (object instanceof List) {
+            return ((List<Object>) object).stream()
+                    .map(RelationTemplate::toQuery)
+                    .collect(Collectors.joining(","));
+        } else if (object instanceof ObjectId) {
+            return String.format("{'$oid': '%s'}", ((ObjectId) object).toHexString());
+        } else if (object instanceof Date) {
+            return String.format("{'$date': '%s'}", ((Date) object).toInstant().toString());
+        } else if (object instanceof Decimal128) {
+            return ((Decimal128) object).toString();
+        }
+        return String.format("'%s'", object.toString());
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.mongo;
+
+import com.k8scms.cms.utils.ModelUtils;
+import com.k8scms.cms.utils.Utils;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.smallrye.mutiny.subscription.Cancellable;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * The in-memory copy of a small collection, loaded from a find and kept up to date by a change stream. The documents
+ * are kept in the order of their _id, MongoService sorts the uncached queries of the cached collections by _id too, so
+ * both return the same pages.
+ * Only filters of equalities and '$in' (optionally in a top level '$or') are evaluated in memory.
+ * The writes of this node are read back: while a write runs, and until the change stream reaches its operation time,
+ * the queries go to mongo. If the events do not arrive in time (e.g. the operation time of a write that did not change
+ * anything) the collection is loaded again.
+ */
+class CachedCollection {
+
+    static final long MAX_EVENT_WAIT_MILLIS = 5000;
+
+    private final int maxSize;
+    // _id -> document, in the order of the _id
+    private final Map<Object, Document> documents = new TreeMap<>(CachedCollection::compareIds);
+    // the changes that arrive while the collection is loaded, applied on top of the loaded documents
+    private final List<ChangeStreamDocument<Document>> pending = new ArrayList<>();
+    private boolean ready;
+    private boolean failed;
+    // a load that was started before the last reload is ignored
+    private int generation;
+    private Cancellable subscription;
+    // the local writes that run and the cluster time that the applied changes must reach to include them
+    private int writes;
+    private BsonTimestamp awaitedTime;
+    private long awaitedSince;
+    private BsonTimestamp appliedTime;
+
+    CachedCollection(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    // a collection that failed before it got its subscription cancels it at once
+    synchronized void setSubscription(Cancellable subscription) {
+        this.subscription = subscription;
+        if (failed) {
+            subscription.cancel();
+        }
+    }
+
+    synchronized boolean isReady() {
+        return ready && !failed && writes == 0 && !isAwaiting();
+    }
+
+    // the writes are waited for up to MAX_EVENT_WAIT_MILLIS, then the collection is loaded again
+    synchronized boolean isLagging(long now) {
+        return ready && !failed && writes == 0 && isAwaiting() && now - awaitedSince > MAX_EVENT_WAIT_MILLIS;
+    }
+
+    private boolean isAwaiting() {
+        return awaitedTime != null && (appliedTime == null || appliedTime.compareTo(awaitedTime) < 0);
+    }
+
+    synchronized void beginWrite() {
+        writes++;
+    }
+
+    // the operation time of a write that changed documents, null for none
+    synchronized void awaitWrite(BsonTimestamp operationTime, long now) {
+        if (operationTime != null && (awaitedTime == null || operationTime.compareTo(awaitedTime) > 0)) {
+            awaitedTime = operationTime;
+            awaitedSince = now;
+        }
+    }
+
+    synchronized void endWrite() {
+        writes--;
+    }
+
+    synchronized boolean isFailed() {
+        return failed;
+    }
+
+    // the load reads the writes that are completed, only the running ones are waited for
+    synchronized int reload() {
+        ready = false;
+        awaitedTime = null;
+        return ++generation;
+    }
+
+    synchronized void load(int loadGeneration, List<Document> loaded) {
+        if (loadGeneration != generation || failed) {
+            return;
+        }
+        if (loaded.size() > maxSize) {
+            throw new IllegalStateException(String.format("%d documents are more than the %d that are cached", loaded.size(), maxSize));
+        }
+        documents.clear();
+        loaded.forEach(document -> documents.put(document.get("_id"), document));
+        pending.forEach(this::apply);
+        pending.clear();
+        ready = true;
+    }
+
+    synchronized void onChange(ChangeStreamDocument<Document> change) {
+        if (ready) {
+            apply(change);
+        } else {
+            pending.add(change);
+        }
+    }
+
+    private void apply(ChangeStreamDocument<Document> change) {
+        if (change.getClusterTime() != null) {
+            appliedTime = change.getClusterTime();
+        }
+        switch (change.getOperationType()) {
+            case INSERT:
+            case UPDATE:
+            case REPLACE:
+                // the full document of an update is null when it was deleted since, its delete follows
+                if (change.getFullDocument() != null) {
+                    documents.put(change.getFullDocument().get("_id"), change.getFullDocument());
+                }
+                break;
+            case DELETE:
+                documents.remove(Utils.toDocument(change.getDocumentKey()).get("_id"));
+                break;
+            default:
+                // drop, rename, invalidate, the stream is closed
+                fail();
+        }
+        if (documents.size() > maxSize) {
+            fail();
+        }
+    }
+
+    synchronized void fail() {
+        failed = true;
+        documents.clear();
+        pending.clear();
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * @return the alternatives of the filter, each one as field -> accepted equality keys, null if the filter cannot
+     * be evaluated in memory
+     */
+    static List<Map<String, Set<Object>>> toConditions(Document filter) {
+        List<Document> alternatives;
+        if (filter.size() == 1 && filter.get("$or") instanceof List) {
+            alternatives = new ArrayList<>();
+            for (Object alternative : (List<?>) filter.get("$or")) {
+                if (!(alternative instanceof Document)) {
+                    return null;
+                }
+                alternatives.add((Document) alternative);
+            }
+        } else {
+            alternatives = Collections.singletonList(filter);
+        }
+        List<Map<String, Set<Object>>> result = new ArrayList<>();
+        for (Document alternative : alternatives) {
+            Map<String, Set<Object>> conditions = alternative.isEmpty() ? Collections.emptyMap() : ModelUtils.toEqualityConditions(alternative);
+            if (conditions == null) {
+                return null;
+            }
+            Map<String, Set<Object>> keys = new HashMap<>();
+            conditions.forEach((fieldName, values) -> {
+                Set<Object> fieldKeys = new HashSet<>();
+                values.forEach(value -> fieldKeys.add(Utils.equalityKey(value)));
+                keys.put(fieldName, fieldKeys);
+            });
+            result.add(keys);
+        }
+        return result;
+    }
+
+    /**
+     * @return copies of the matching documents in the order of the _id, the callers change the documents they get
+     */
+    synchronized List<Document> find(List<Map<String, Set<Object>>> conditions, int skip, Integer limit, Collection<String> projection) {
+        List<Document> result = new ArrayList<>();
+        int skipped = 0;
+        for (Document document : documents.values()) {
+            if (limit != null && result.size() >= limit) {
+                break;
+            }
+            if (conditions.stream().anyMatch(alternative -> matches(document, alternative))) {
+                if (skipped < skip) {
+                    skipped++;
+                } else {
+                    result.add(project(Utils.deepCopy(document), projection));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The order of mongo for the types of the ids: numbers (by value), strings, documents, arrays, object ids,
+     * booleans and dates. The documents and the arrays are compared by their JSON, mongo compares them field by field.
+     */
+    static int compareIds(Object a, Object b) {
+        int typeOrder = Integer.compare(typeOrder(a), typeOrder(b));
+        if (typeOrder != 0) {
+            return typeOrder;
+        }
+        if (a instanceof Number) {
+            return toBigDecimal((Number) a).compareTo(toBigDecimal((Number) b));
+        } else if (a instanceof String) {
+            return ((String) a).compareTo((String) b);
+        } else if (a instanceof ObjectId) {
+            return ((ObjectId) a).compareTo((ObjectId) b);
+        } else if (a instanceof Boolean) {
+            return ((Boolean) a).compareTo((Boolean) b);
+        } else if (a instanceof Date) {
+            return ((Date) a).compareTo((Date) b);
+        } else if (a instanceof Document) {
+            return ((Document) a).toJson().compareTo(((Document) b).toJson());
+        }
+        return String.valueOf(a).compareTo(String.valueOf(b));
+    }
+
+    private static int typeOrder(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return 1;
+        } else if (value instanceof String) {
+            return 2;
+        } else if (value instanceof Document) {
+            return 3;
+        } else if (value instanceof List) {
+            return 4;
+        } else if (value instanceof ObjectId) {
+            return 5;
+        } else if (value instanceof Boolean) {
+            return 6;
+        } else if (value instanceof Date) {
+            return 7;
+        }
+        return 8;
+    }
+
+    // NaN first, like mongo, then the infinities around the finite doubles
+    private static final BigDecimal NAN = BigDecimal.valueOf(-Double.MAX_VALUE).subtract(BigDecimal.valueOf(2));
+    private static final BigDecimal NEGATIVE_INFINITY = BigDecimal.valueOf(-Double.MAX_VALUE).subtract(BigDecimal.ONE);
+    private static final BigDecimal POSITIVE_INFINITY = BigDecimal.valueOf(Double.MAX_VALUE).add(BigDecimal.ONE);
+
+    private static BigDecimal toBigDecimal(Number number) {
+        if (number instanceof Decimal128) {
+            Decimal128 decimal128 = (Decimal128) number;
+            if (decimal128.isNaN()) {
+                return NAN;
+            } else if (decimal128.isInfinite()) {
+                return decimal128.isNegative() ? NEGATIVE_INFINITY : POSITIVE_INFINITY;
+            }
+            try {
+                return decimal128.bigDecimalValue();
+            } catch (ArithmeticException e) {
+                // negative zero
+                return BigDecimal.ZERO;
+            }
+        } else if (number instanceof Double || number instanceof Float) {
+            double value = number.doubleValue();
+            if (Double.isNaN(value)) {
+                return NAN;
+            } else if (Double.isInfinite(value)) {
+                return value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY;
+            }
+            return BigDecimal.valueOf(value);
+        }
+        return BigDecimal.valueOf(number.longValue());
+    }
+
+    // like mongo, the elements of arrays are matched and null matches the missing fields
+    private static boolean matches(Document document, Map<String, Set<Object>> conditions) {
+        for (Map.Entry<String, Set<Object>> condition : conditions.entrySet()) {
+            Object value = document.get(condition.getKey());
+            Collection<?> values = value instanceof List ? (List<?>) value : Collections.singletonList(value);
+            if (values.stream().noneMatch(v -> condition.getValue().contains(Utils.equalityKey(v)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Document project(Document document, Collection<String> projection) {
+        if (projection != null) {
+            document.keySet().removeIf(key -> !"_id".equals(key) && !projection.contains(key));
+        }
+        return document;
+    }
+}
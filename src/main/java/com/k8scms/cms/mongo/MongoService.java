@@ -23,30 +23,46 @@
 package com.k8scms.cms.mongo;
 
 import com.k8scms.cms.CmsProperties;
+import com.k8scms.cms.Constants;
 import com.k8scms.cms.model.CollectionMeta;
 import com.k8scms.cms.model.GetOptions;
+import com.k8scms.cms.model.Model;
+import com.k8scms.cms.model.Relation;
 import com.k8scms.cms.resource.DataFilter;
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.model.*;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.result.InsertManyResult;
 import com.mongodb.reactivestreams.client.MongoClients;
+import io.quarkus.mongodb.ChangeStreamOptions;
 import io.quarkus.mongodb.FindOptions;
 import io.quarkus.mongodb.impl.ReactiveMongoClientImpl;
 import io.quarkus.mongodb.reactive.ReactiveMongoClient;
+import io.quarkus.mongodb.reactive.ReactiveMongoCollection;
 import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.eclipse.microprofile.config.ConfigProvider;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
+import javax.ws.rs.BadRequestException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -55,13 +71,27 @@ public class MongoService {
 
     private static final Logger logger = LoggerFactory.getLogger(MongoService.class);
 
+    // seconds before a cached collection that failed is started again
+    private static final long CACHED_COLLECTION_RESTART_DELAY = 5;
+
     private Map<String, ReactiveMongoClient> mongoClients;
 
     @Inject
     CmsProperties cmsProperties;
 
+    @Inject
+    Event<CollectionChange> collectionChangeEvent;
+
+    // cluster.database.collection -> in-memory copy
+    private final Map<String, CachedCollection> cachedCollections = new ConcurrentHashMap<>();
+    // collections that cannot be cached e.g. not on a replica set or too big, they are not tried again
+    private final Set<String> uncachedCollections = ConcurrentHashMap.newKeySet();
+
+    private RelationCache relationCache;
+
     @PostConstruct
     void postConstruct() {
+        relationCache = new RelationCache(cmsProperties.getRelationCacheSize(), cmsProperties.getRelationCacheTtl() * 1000);
         mongoClients = new HashMap<>();
         int i = 0;
         while (true) {
@@ -109,26 +139,49 @@ public class MongoService {
     }
 
     public Multi<Document> get(String cluster, String database, String collection, Bson filter, GetOptions getOptions) {
+        List<Document> cached = findCached(cluster, database, collection, filter, getOptions);
+        if (cached != null) {
+            return Multi.createFrom().iterable(cached);
+        }
         FindOptions findOptions = new FindOptions();
-        findOptions.filter(filter);
+        if (getOptions.getAfter() != null) {
+            findOptions.filter(Filters.and(filter, getAfterFilter(getOptions)));
+        } else {
+            findOptions.filter(filter);
+        }
 
-        if (getOptions.getSort() != null) {
+        if (getOptions.isKeyset()) {
+            // _id breaks the ties of the sort field, the order is total and the next page starts after the last document
+            Document document = new Document();
+            if (getOptions.getSort() != null) {
+                document.put(getOptions.getSort(), getSortDirection(getOptions));
+            }
+            document.put("_id", getSortDirection(getOptions));
+            findOptions.sort(document);
+        } else if (getOptions.getSort() != null) {
             Document document = new Document();
             document.put(getOptions.getSort(), getOptions.getSortDirection());
             findOptions.sort(document);
+        } else if (cachedCollections.containsKey(getCollectionKey(Optional.ofNullable(cluster).orElse(cmsProperties.getCluster()), database, collection))) {
+            // the order of the in-memory copy, the pages are the same whether they come from memory or not
+            findOptions.sort(new Document("_id", 1));
+        }
+        if (getOptions.getProjection() != null) {
+            findOptions.projection(getOptions.getProjection());
         }
-        if (getOptions.getSkip() != null) {
+        if (getOptions.getCollation() != null) {
+            findOptions.collation(getOptions.getCollation());
+        }
+        // the keyset pages do not skip
+        if (getOptions.getSkip() != null && !getOptions.isKeyset()) {
             findOptions.skip(getOptions.getSkip());
         }
-        if (getOptions.getLimit() != null) {
-            findOptions.limit(Math.min(getOptions.getLimit(), cmsProperties.getLimit()));
+        Integer limit = getLimit(getOptions);
+        if (limit != null) {
+            findOptions.limit(limit);
         } else {
-            if (getOptions.getNoLimit()) {
-                // no limit
-                logger.debug("get without limit");
-            } else {
-                findOptions.limit(cmsProperties.getLimit());
-            }
+            // no limit
+            logger.debug("get without limit");
         }
 
         return findMongoClient(cluster).getDatabase(database)
@@ -136,6 +189,238 @@ public class MongoService {
                 .find(findOptions);
     }
 
+    private static String getCollectionKey(String cluster, String database, String collection) {
+        return String.format("%s.%s.%s", cluster, database, collection);
+    }
+
+    // the documents from memory, null when the collection is not cached or the query cannot be evaluated in memory
+    private List<Document> findCached(String cluster, String database, String collection, Bson filter, GetOptions getOptions) {
+        if (cachedCollections.isEmpty()) {
+            return null;
+        }
+        String key = getCollectionKey(Optional.ofNullable(cluster).orElse(cmsProperties.getCluster()), database, collection);
+        CachedCollection cachedCollection = cachedCollections.get(key);
+        if (cachedCollection != null && cachedCollection.isLagging(System.currentTimeMillis())) {
+            logger.debug("The change events of the writes on {} are late, it is loaded again", key);
+            loadCachedCollection(key, cluster, database, collection, cachedCollection);
+        }
+        if (cachedCollection == null
+                || !cachedCollection.isReady()
+                || !(filter instanceof Document)
+                || getOptions.getSort() != null
+                || getOptions.isKeyset()
+                || getOptions.getCollation() != null) {
+            return null;
+        }
+        Collection<String> projection = null;
+        if (getOptions.getProjection() != null) {
+            if (getOptions.getProjection().entrySet().stream().anyMatch(entry -> entry.getKey().contains(".") || !Objects.equals(entry.getValue(), 1))) {
+                return null;
+            }
+            projection = getOptions.getProjection().keySet();
+        }
+        List<Map<String, Set<Object>>> conditions = CachedCollection.toConditions((Document) filter);
+        if (conditions == null) {
+            return null;
+        }
+        return cachedCollection.find(conditions, Optional.ofNullable(getOptions.getSkip()).orElse(0), getLimit(getOptions), projection);
+    }
+
+    /**
+     * Starts the in-memory copies of the models with the cached flag and stops the ones that are no longer cached. A
+     * copy that failed (e.g. the change stream was closed) is started again.
+     */
+    public void updateCachedCollections(Collection<Model> models) {
+        Map<String, Model> cachedModels = new HashMap<>();
+        models.stream()
+                .filter(Model::getCached)
+                .forEach(model -> cachedModels.put(getCollectionKey(Optional.ofNullable(model.getCluster()).orElse(cmsProperties.getCluster()), model.getDatabase(), model.getCollection()), model));
+        cachedCollections.entrySet().removeIf(entry -> {
+            if (!cachedModels.containsKey(entry.getKey()) || entry.getValue().isFailed()) {
+                entry.getValue().fail();
+                return true;
+            }
+            return false;
+        });
+        cachedModels.forEach((key, model) -> {
+            if (!cachedCollections.containsKey(key) && !uncachedCollections.contains(key)) {
+                startCachedCollection(key, Optional.ofNullable(model.getCluster()).orElse(cmsProperties.getCluster()), model.getDatabase(), model.getCollection());
+            }
+        });
+    }
+
+    /**
+     * @return the current operation time of the cluster, watch the changes from it before reading a collection and no
+     * change is lost in between. Null when the cluster is not a replica set, there are no change streams then.
+     */
+    public BsonTimestamp getOperationTime(String cluster, String database) {
+        Object operationTime = findMongoClient(cluster).getDatabase(database).runCommand(new Document("isMaster", 1)).await().indefinitely().get("operationTime");
+        return operationTime instanceof BsonTimestamp ? (BsonTimestamp) operationTime : null;
+    }
+
+    // the changes of the collection from the operation time on, updates come with the full document
+    public Multi<ChangeStreamDocument<Document>> watch(String cluster, String database, String collection, BsonTimestamp operationTime) {
+        ChangeStreamOptions changeStreamOptions = new ChangeStreamOptions()
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .startAtOperationTime(operationTime);
+        return findMongoClient(cluster).getDatabase(database).getCollection(collection).watch(changeStreamOptions);
+    }
+
+    private void startCachedCollection(String key, String cluster, String database, String collection) {
+        BsonTimestamp operationTime = getOperationTime(cluster, database);
+        if (operationTime == null) {
+            logger.warn("Collection {} is not cached, change streams require a replica set", key);
+            uncachedCollections.add(key);
+            return;
+        }
+        CachedCollection cachedCollection = new CachedCollection(cmsProperties.getCollectionCacheMaxSize());
+        if (cachedCollections.putIfAbsent(key, cachedCollection) != null) {
+            // started by the scheduled update and by a restart at the same time
+            return;
+        }
+        cachedCollection.setSubscription(watch(cluster, database, collection, operationTime)
+                .subscribe().with(change -> {
+                    cachedCollection.onChange(change);
+                    // a drop, a rename or too many documents
+                    if (cachedCollection.isFailed()) {
+                        restartCachedCollection(key, cachedCollection, cluster, database, collection);
+                    }
+                }, throwable -> {
+                    logger.warn(String.format("Change stream of %s failed, the cache starts again", key), throwable);
+                    cachedCollection.fail();
+                    restartCachedCollection(key, cachedCollection, cluster, database, collection);
+                }, () -> {
+                    cachedCollection.fail();
+                    restartCachedCollection(key, cachedCollection, cluster, database, collection);
+                }));
+        loadCachedCollection(key, cluster, database, collection, cachedCollection);
+    }
+
+    /**
+     * Starts a failed copy again after CACHED_COLLECTION_RESTART_DELAY seconds, off the driver threads. A copy that is
+     * no longer cached or is too big is not started, a copy that cannot start is tried again by updateCachedCollections.
+     */
+    private void restartCachedCollection(String key, CachedCollection cachedCollection, String cluster, String database, String collection) {
+        if (!cachedCollections.remove(key, cachedCollection)) {
+            return;
+        }
+        Infrastructure.getDefaultWorkerPool().schedule(() -> {
+            if (cachedCollections.containsKey(key) || uncachedCollections.contains(key)) {
+                return;
+            }
+            try {
+                startCachedCollection(key, cluster, database, collection);
+            } catch (RuntimeException e) {
+                logger.warn(String.format("Collection %s could not start again", key), e);
+            }
+        }, CACHED_COLLECTION_RESTART_DELAY, TimeUnit.SECONDS);
+    }
+
+    private void loadCachedCollection(String key, String cluster, String database, String collection, CachedCollection cachedCollection) {
+        int generation = cachedCollection.reload();
+        findMongoClient(cluster).getDatabase(database).getCollection(collection).find().collectItems().asList()
+                .subscribe().with(documents -> {
+                    try {
+                        cachedCollection.load(generation, documents);
+                        logger.debug("Cached {} documents of {}", documents.size(), key);
+                    } catch (IllegalStateException e) {
+                        logger.warn("Collection {} is not cached, {}", key, e.getMessage());
+                        uncachedCollections.add(key);
+                        cachedCollection.fail();
+                        cachedCollections.remove(key, cachedCollection);
+                    }
+                }, throwable -> {
+                    logger.warn(String.format("Loading %s failed, the cache starts again", key), throwable);
+                    cachedCollection.fail();
+                    restartCachedCollection(key, cachedCollection, cluster, database, collection);
+                });
+    }
+
+    // the cached collections apply the writes, of this node and of the others, from their change streams
+    void onCollectionChange(@Observes CollectionChange collectionChange) {
+        relationCache.invalidate(collectionChange.getCluster(), collectionChange.getDatabase(), collectionChange.getCollection());
+    }
+
+    private long getRelationCacheTtl(Relation relation) {
+        return relation.getCacheTtl() != null ? relation.getCacheTtl() * 1000L : cmsProperties.getRelationCacheTtl() * 1000;
+    }
+
+    // copies of the cached related documents of the resolved filter, null when they are not cached
+    public List<Document> getCachedRelations(Relation relation, Document filter) {
+        if (getRelationCacheTtl(relation) <= 0) {
+            return null;
+        }
+        return relationCache.get(Optional.ofNullable(relation.getCluster()).orElse(cmsProperties.getCluster()), relation.getDatabase(), relation.getCollection(), filter.toJson());
+    }
+
+    // take the generation before the lookup, the result is not cached if the collection was written meanwhile
+    public long getRelationCacheGeneration() {
+        return relationCache.getGeneration();
+    }
+
+    public void putCachedRelations(Relation relation, Document filter, List<Document> documents, long generation) {
+        long ttlMillis = getRelationCacheTtl(relation);
+        if (ttlMillis > 0) {
+            relationCache.put(Optional.ofNullable(relation.getCluster()).orElse(cmsProperties.getCluster()), relation.getDatabase(), relation.getCollection(), filter.toJson(), documents, generation, ttlMillis);
+        }
+    }
+
+    @Gauge(name = "cms.relation-cache.hits", unit = MetricUnits.NONE, absolute = true,
+            description = "Relation lookups answered from the relation cache")
+    public long getRelationCacheHits() {
+        return relationCache.getHits();
+    }
+
+    @Gauge(name = "cms.relation-cache.misses", unit = MetricUnits.NONE, absolute = true,
+            description = "Relation lookups that were not in the relation cache")
+    public long getRelationCacheMisses() {
+        return relationCache.getMisses();
+    }
+
+    @Gauge(name = "cms.relation-cache.size", unit = MetricUnits.NONE, absolute = true,
+            description = "Entries of the relation cache")
+    public int getRelationCacheSize() {
+        return relationCache.size();
+    }
+
+    // null when there is no limit
+    public Integer getLimit(GetOptions getOptions) {
+        if (getOptions.getLimit() != null) {
+            return Math.min(getOptions.getLimit(), cmsProperties.getLimit());
+        }
+        return getOptions.getNoLimit() ? null : cmsProperties.getLimit();
+    }
+
+    private static int getSortDirection(GetOptions getOptions) {
+        return getOptions.getSortDirection() != null && getOptions.getSortDirection() < 0 ? -1 : 1;
+    }
+
+    // the documents after the last one of the previous page in the (sort, _id) order,
+    // a sort field is expected to have values of one type, mongo does not compare values of different types
+    static Bson getAfterFilter(GetOptions getOptions) {
+        Document after = getOptions.getAfter();
+        String sort = getOptions.getSort();
+        if (!Objects.equals(sort, after.get("sort")) || after.get("_id") == null) {
+            throw new BadRequestException(String.format("The %s token does not match the sort '%s'", Constants.QUERY_PARAM_AFTER, sort));
+        }
+        boolean ascending = getSortDirection(getOptions) > 0;
+        Object id = after.get("_id");
+        Bson idAfter = ascending ? Filters.gt("_id", id) : Filters.lt("_id", id);
+        if (sort == null || "_id".equals(sort)) {
+            return idAfter;
+        }
+        Object value = after.get("value");
+        if (value == null) {
+            // null and missing values come first when ascending and last when descending
+            return ascending
+                    ? Filters.or(Filters.ne(sort, null), Filters.and(Filters.eq(sort, null), idAfter))
+                    : Filters.and(Filters.eq(sort, null), idAfter);
+        }
+        return ascending
+                ? Filters.or(Filters.gt(sort, value), Filters.and(Filters.eq(sort, value), idAfter))
+                : Filters.or(Filters.lt(sort, value), Filters.and(Filters.eq(sort, value), idAfter), Filters.eq(sort, null));
+    }
+
     public Uni<CollectionMeta> getMeta(String cluster, String database, String collection) {
         return findMongoClient(cluster).getDatabase(database)
                 .getCollection(collection)
@@ -147,6 +432,13 @@ public class MongoService {
                 });
     }
 
+    // a write without a known result, e.g. it failed on the network, may have changed documents
+    private static boolean hasChanges(BulkWriteResult result) {
+        return result == null
+                || !result.wasAcknowledged()
+                || result.getInsertedCount() + result.getModifiedCount() + result.getDeletedCount() + result.getUpserts().size() > 0;
+    }
+
     public Uni<BulkWriteResult> post(String cluster, String database, String collection, List<Document> data, boolean ordered) {
         return bulkWrite(
                 cluster,
@@ -156,6 +448,13 @@ public class MongoService {
                 ordered);
     }
 
+    // unordered and without a CollectionChange, for the collections that nothing caches or reads back e.g. the logs
+    public Uni<InsertManyResult> insert(String cluster, String database, String collection, List<Document> data) {
+        return findMongoClient(cluster).getDatabase(database)
+                .getCollection(collection)
+                .insertMany(data, new InsertManyOptions().ordered(false));
+    }
+
     // when updating from the UI form the _id is used, on upload the field id
     public Uni<BulkWriteResult> put(String cluster, String database, String collection, List<DataFilter> dataFilters, boolean upsert, boolean ordered) {
         List<ReplaceOneModel<Document>> replaceOneModels = new ArrayList<>();
@@ -203,9 +502,30 @@ public class MongoService {
     }
 
     private Uni<BulkWriteResult> bulkWrite(String cluster, String database, String collection, List<? extends WriteModel<Document>> writeModels, boolean ordered) {
-        return findMongoClient(cluster).getDatabase(database)
-                .getCollection(collection)
-                .bulkWrite(writeModels, new BulkWriteOptions().ordered(ordered))
+        CollectionChange collectionChange = new CollectionChange(Optional.ofNullable(cluster).orElse(cmsProperties.getCluster()), database, collection);
+        ReactiveMongoCollection<Document> mongoCollection = findMongoClient(cluster).getDatabase(database).getCollection(collection);
+        BulkWriteOptions bulkWriteOptions = new BulkWriteOptions().ordered(ordered);
+        CachedCollection cachedCollection = cachedCollections.get(getCollectionKey(collectionChange.getCluster(), database, collection));
+        Uni<BulkWriteResult> write;
+        if (cachedCollection == null) {
+            write = mongoCollection.bulkWrite(writeModels, bulkWriteOptions);
+        } else {
+            // the cache is not read while the write runs and until its change events are applied, the session gives
+            // the operation time of the write
+            write = findMongoClient(cluster).startSession()
+                    .onItem().transformToUni(session -> mongoCollection.bulkWrite(session, writeModels, bulkWriteOptions)
+                            .onItemOrFailure().invoke((bulkWriteResult, throwable) -> {
+                                BulkWriteResult result = throwable instanceof MongoBulkWriteException ? ((MongoBulkWriteException) throwable).getWriteResult() : bulkWriteResult;
+                                cachedCollection.awaitWrite(hasChanges(result) ? session.getOperationTime() : null, System.currentTimeMillis());
+                                session.close();
+                            }))
+                    .onSubscribe().invoke(subscription -> cachedCollection.beginWrite())
+                    .eventually(cachedCollection::endWrite);
+        }
+        return write
+                // fire also on failures, some of the writes may have been applied
+                .onItemOrFailure()
+                .invoke((bulkWriteResult, throwable) -> collectionChangeEvent.fire(collectionChange))
                 .onFailure()
                 .recoverWithItem(throwable -> {
                     if (throwable instanceof MongoBulkWriteException) {
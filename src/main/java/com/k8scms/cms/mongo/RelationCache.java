@@ -0,0 +1,94 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.mongo;
+
+import com.k8scms.cms.utils.ExpiringCache;
+import com.k8scms.cms.utils.Utils;
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * The related documents of the resolved relation filters, keyed by cluster, database, collection and filter. The
+ * entries expire after the ttl of their relation and are dropped when this node writes to the related collection,
+ * the writes of other nodes are seen when the entries expire. The documents are copied in and out, the responses
+ * change them in place.
+ */
+class RelationCache {
+
+    private final ExpiringCache<List<String>, List<Document>> entries;
+    // bumped on every write, a lookup that started before a write does not put its stale result
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    RelationCache(int maxSize, long ttlMillis) {
+        entries = new ExpiringCache<>(maxSize, ttlMillis);
+    }
+
+    List<Document> get(String cluster, String database, String collection, String filter) {
+        List<Document> documents = entries.get(Arrays.asList(cluster, database, collection, filter));
+        if (documents == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy(documents);
+    }
+
+    void put(String cluster, String database, String collection, String filter, List<Document> documents, long generation, long ttlMillis) {
+        if (this.generation.get() == generation) {
+            entries.put(Arrays.asList(cluster, database, collection, filter), copy(documents), ttlMillis);
+        }
+    }
+
+    long getGeneration() {
+        return generation.get();
+    }
+
+    void invalidate(String cluster, String database, String collection) {
+        generation.incrementAndGet();
+        List<String> prefix = Arrays.asList(cluster, database, collection);
+        entries.removeIf((key, documents) -> key.subList(0, 3).equals(prefix));
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static List<Document> copy(List<Document> documents) {
+        return documents.stream().map(Utils::deepCopy).collect(Collectors.toList());
+    }
+}
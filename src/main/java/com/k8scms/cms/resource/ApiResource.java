@@ -32,11 +32,14 @@ import com.k8scms.cms.model.*;
 import com.k8scms.cms.mongo.MongoBulkWriteExceptionBulkWriteResult;
 import com.k8scms.cms.mongo.MongoService;
 import com.k8scms.cms.service.ModelService;
+import com.k8scms.cms.utils.ExportWriter;
 import com.k8scms.cms.utils.ModelUtils;
 import com.k8scms.cms.utils.Utils;
+import com.k8scms.cms.utils.VirtualThreads;
 import com.mongodb.bulk.BulkWriteInsert;
 import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.bulk.BulkWriteUpsert;
+import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 import org.bson.BsonObjectId;
 import org.bson.BsonValue;
@@ -48,12 +51,17 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
-import javax.ws.rs.core.Context;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Path(Constants.BASE_PATH_API)
 @ApiLocalAuthenticationFilter
@@ -65,6 +73,8 @@ public class ApiResource {
     public static final String PATH_PARAM_CLUSTER = "cluster";
     public static final String PATH_PARAM_DATABASE = "database";
     public static final String PATH_PARAM_COLLECTION = "collection";
+    // documents of a stream that share the relation queries
+    private static final int STREAM_BATCH_SIZE = 100;
 
     @Inject
     MongoService mongoService;
@@ -84,22 +94,25 @@ public class ApiResource {
     @Context
     HttpRequest httpRequest;
 
+    @Context
+    HttpHeaders httpHeaders;
+
     /**
      * Query params are always passed as strings, oid or date type.
      * For proper usage of numbers, use the POST/get
      */
     @GET
     @Path("{collection}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public List<Document> get(
+    @Produces({MediaType.APPLICATION_JSON, Constants.MEDIA_TYPE_NDJSON})
+    public Uni<Response> get(
             @PathParam(PATH_PARAM_COLLECTION) String collection) {
         return get(cmsProperties.getDatabase(), collection);
     }
 
     @GET
     @Path("{database}/{collection}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public List<Document> get(
+    @Produces({MediaType.APPLICATION_JSON, Constants.MEDIA_TYPE_NDJSON})
+    public Uni<Response> get(
             @PathParam(PATH_PARAM_DATABASE) String database,
             @PathParam(PATH_PARAM_COLLECTION) String collection) {
         return get(cmsProperties.getCluster(), database, collection);
@@ -159,9 +172,9 @@ public class ApiResource {
 
     @POST
     @Path("{collection}/GET")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, Constants.MEDIA_TYPE_NDJSON})
     @Consumes(MediaType.APPLICATION_JSON)
-    public List<Document> postGet(
+    public Uni<Response> postGet(
             @PathParam(PATH_PARAM_COLLECTION) String collection,
             Document filterWithGetOptions) {
         return postGet(cmsProperties.getDatabase(), collection, filterWithGetOptions);
@@ -169,9 +182,9 @@ public class ApiResource {
 
     @POST
     @Path("{database}/{collection}/GET")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, Constants.MEDIA_TYPE_NDJSON})
     @Consumes(MediaType.APPLICATION_JSON)
-    public List<Document> postGet(
+    public Uni<Response> postGet(
             @PathParam(PATH_PARAM_DATABASE) String database,
             @PathParam(PATH_PARAM_COLLECTION) String collection,
             Document filterWithGetOptions) {
@@ -247,8 +260,8 @@ public class ApiResource {
 
     @GET
     @Path("{cluster}/{database}/{collection}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public List<Document> get(
+    @Produces({MediaType.APPLICATION_JSON, Constants.MEDIA_TYPE_NDJSON})
+    public Uni<Response> get(
             @PathParam(PATH_PARAM_CLUSTER) String cluster,
             @PathParam(PATH_PARAM_DATABASE) String database,
             @PathParam(PATH_PARAM_COLLECTION) String collection) {
@@ -261,9 +274,9 @@ public class ApiResource {
 
     @POST
     @Path("{cluster}/{database}/{collection}/GET")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, Constants.MEDIA_TYPE_NDJSON})
     @Consumes(MediaType.APPLICATION_JSON)
-    public List<Document> postGet(
+    public Uni<Response> postGet(
             @PathParam(PATH_PARAM_CLUSTER) String cluster,
             @PathParam(PATH_PARAM_DATABASE) String database,
             @PathParam(PATH_PARAM_COLLECTION) String collection,
@@ -273,7 +286,7 @@ public class ApiResource {
         return get(cluster, database, collection, documentWithGetOptions);
     }
 
-    private List<Document> get(String cluster, String database, String collection, Document documentWithGetOptions) {
+    private Uni<Response> get(String cluster, String database, String collection, Document documentWithGetOptions) {
         Model model = modelService.getModel(cluster, database, collection);
 
         documentWithGetOptions = ModelUtils.getNormalizedDocument(documentWithGetOptions, model);
@@ -281,9 +294,118 @@ public class ApiResource {
         applyUserFilters(model, filter);
 
         GetOptions getOptions = Utils.getGetOptionsFromDocument(documentWithGetOptions);
+        if (getOptions.getFields() != null) {
+            getOptions.setProjection(ModelUtils.getProjection(getOptions.getFields(), model, getOptions.getSort()));
+        }
+
+        if (isStreamRequested()) {
+            // the response is resumed and its output stream written on the blocking executor, see streamGetResult
+            return Uni.createFrom().item(Response.ok(streamGetResult(cluster, database, collection, model, filter, getOptions), Constants.MEDIA_TYPE_NDJSON).build())
+                    .emitOn(VirtualThreads.executor());
+        }
+        // no thread waits for mongo, the response is resumed when the documents and their relations are found
+        return mongoService.get(cluster, database, collection, filter, getOptions)
+                .collectItems()
+                .asList()
+                // decrypt and validate (in parallel for big pages) on the blocking executor, not on the driver threads
+                .emitOn(VirtualThreads.executor())
+                .onItem().transformToUni(documents -> {
+                    String nextAfter = getNextAfter(documents, getOptions);
+                    return methodGetResult(model, documents, getOptions).map(result -> {
+                        Response.ResponseBuilder responseBuilder = Response.ok(result, MediaType.APPLICATION_JSON);
+                        if (nextAfter != null) {
+                            responseBuilder.header(Constants.HEADER_NEXT_AFTER, nextAfter);
+                        }
+                        return responseBuilder.build();
+                    });
+                });
+    }
+
+    // a full page means that there may be more documents, the token is created from the stored values (not the wire ones)
+    private String getNextAfter(List<Document> documents, GetOptions getOptions) {
+        Integer limit = mongoService.getLimit(getOptions);
+        if (!getOptions.isKeyset() || documents.isEmpty() || limit == null || documents.size() < limit) {
+            return null;
+        }
+        return Utils.encodeAfter(documents.get(documents.size() - 1), getOptions.getSort());
+    }
 
-        // do not nest mongo reactive flows, first block to get the data and next execute other mongo flows that block
-        return methodGetResult(cluster, database, collection, model, filter, getOptions);
+    // streaming is opt-in, only clients that explicitly accept NDJSON get it, wildcards keep the JSON array
+    private boolean isStreamRequested() {
+        return httpHeaders.getAcceptableMediaTypes().stream()
+                .anyMatch(mediaType -> !mediaType.isWildcardType()
+                        && !mediaType.isWildcardSubtype()
+                        && mediaType.isCompatible(MediaType.valueOf(Constants.MEDIA_TYPE_NDJSON)));
+    }
+
+    @GET
+    @Path("{collection}/export")
+    @Produces({ExportWriter.MEDIA_TYPE_CSV, ExportWriter.MEDIA_TYPE_XLSX, ExportWriter.MEDIA_TYPE_GZIP})
+    public Uni<Response> export(
+            @PathParam(PATH_PARAM_COLLECTION) String collection,
+            @QueryParam(Constants.QUERY_PARAM_FORMAT) @DefaultValue(ExportWriter.FORMAT_CSV) String format) {
+        return export(cmsProperties.getDatabase(), collection, format);
+    }
+
+    @GET
+    @Path("{database}/{collection}/export")
+    @Produces({ExportWriter.MEDIA_TYPE_CSV, ExportWriter.MEDIA_TYPE_XLSX, ExportWriter.MEDIA_TYPE_GZIP})
+    public Uni<Response> export(
+            @PathParam(PATH_PARAM_DATABASE) String database,
+            @PathParam(PATH_PARAM_COLLECTION) String collection,
+            @QueryParam(Constants.QUERY_PARAM_FORMAT) @DefaultValue(ExportWriter.FORMAT_CSV) String format) {
+        return export(cmsProperties.getCluster(), database, collection, format);
+    }
+
+    /**
+     * Streams the whole collection (or the filtered documents) as a file directly from the cursor. The columns of csv
+     * and xlsx are the model's fields without the relations and virtual fields, or the requested '_fields'. The
+     * ndjson (gzip) has the whole documents unless '_fields' are requested.
+     */
+    @GET
+    @Path("{cluster}/{database}/{collection}/export")
+    @Produces({ExportWriter.MEDIA_TYPE_CSV, ExportWriter.MEDIA_TYPE_XLSX, ExportWriter.MEDIA_TYPE_GZIP})
+    public Uni<Response> export(
+            @PathParam(PATH_PARAM_CLUSTER) String cluster,
+            @PathParam(PATH_PARAM_DATABASE) String database,
+            @PathParam(PATH_PARAM_COLLECTION) String collection,
+            @QueryParam(Constants.QUERY_PARAM_FORMAT) @DefaultValue(ExportWriter.FORMAT_CSV) String format) {
+        log.debug("GET {}", uriInfo.getRequestUri());
+
+        // fails on unknown formats before anything is read
+        String mediaType = ExportWriter.getMediaType(format);
+        Model model = modelService.getModel(cluster, database, collection);
+
+        Document documentWithGetOptions = ModelUtils.getNormalizedDocument(Utils.documentFromUriInfo(uriInfo), model);
+        Document filter = Utils.getDocumentWithoutGetOptions(documentWithGetOptions);
+        applyUserFilters(model, filter);
+
+        GetOptions getOptions = Utils.getGetOptionsFromDocument(documentWithGetOptions);
+        if (getOptions.getLimit() == null) {
+            getOptions.setNoLimit(true);
+        }
+        if (getOptions.getFields() == null && !ExportWriter.FORMAT_NDJSON.equals(format)) {
+            getOptions.setFields(Optional.ofNullable(model.getFields()).orElse(Collections.emptyList()).stream()
+                    .filter(field -> field.getRelation() == null && field.getVirtual() == null)
+                    .map(Field::getName)
+                    .collect(Collectors.toList()));
+        }
+        if (getOptions.getFields() != null) {
+            getOptions.setProjection(ModelUtils.getProjection(getOptions.getFields(), model, getOptions.getSort()));
+        }
+
+        Multi<Document> documents = mongoService.get(cluster, database, collection, filter, getOptions);
+        StreamingOutput streamingOutput = outputStream -> {
+            ExportWriter exportWriter = ExportWriter.of(format, getOptions.getFields(), outputStream);
+            writeDocuments(documents, model, getOptions, UnaryOperator.identity(), exportWriter);
+            exportWriter.finish();
+        };
+        String fileName = String.format("%s_%s_%s.%s", cluster, database, collection, ExportWriter.getFileExtension(format));
+        // the response is resumed and the file written on the blocking executor
+        return Uni.createFrom().item(Response.ok(streamingOutput, mediaType)
+                .header("Content-Disposition", String.format("attachment; filename=\"%s\"", fileName))
+                .build())
+                .emitOn(VirtualThreads.executor());
     }
 
     @POST
@@ -299,19 +421,17 @@ public class ApiResource {
         log.debug("POST {}", uriInfo.getRequestUri());
 
         Model model = modelService.getModel(cluster, database, collection);
+        String method = httpRequest.getHttpMethod();
 
         List<Document> data = documents.stream().map(document -> ModelUtils.getNormalizedDocument(document, model))
-                .map(document -> {
-                    ModelUtils.encryptSecrets(document, model, secretProperties);
-                    return document;
-                })
-                .map(document -> {
-                    ModelUtils.applySystemFields(httpRequest.getHttpMethod(), document, model);
-                    return document;
-                })
                 .collect(Collectors.toList());
 
-        return mongoService.post(cluster, database, collection, data, ordered).map(this::mapBulkWriteResult);
+        return ModelUtils.encryptSecretsAsync(data, model, secretProperties)
+                .onItem().transformToUni(encrypted -> {
+                    encrypted.forEach(document -> ModelUtils.applySystemFields(method, document, model));
+                    return mongoService.post(cluster, database, collection, encrypted, ordered);
+                })
+                .map(this::mapBulkWriteResult);
     }
 
     @PUT
@@ -326,9 +446,9 @@ public class ApiResource {
             List<DataFilter> dataFilters) {
         log.debug("PUT {}", uriInfo.getRequestUri());
 
-        putPatch(cluster, database, collection, dataFilters);
-
-        return mongoService.put(cluster, database, collection, dataFilters, true, ordered).map(this::mapBulkWriteResult);
+        return putPatch(cluster, database, collection, dataFilters)
+                .onItem().transformToUni(filters -> mongoService.put(cluster, database, collection, filters, true, ordered))
+                .map(this::mapBulkWriteResult);
     }
 
     @PATCH
@@ -343,22 +463,27 @@ public class ApiResource {
             List<DataFilter> dataFilters) {
         log.debug("PUT {}", uriInfo.getRequestUri());
 
-        putPatch(cluster, database, collection, dataFilters);
-
-        return mongoService.patch(cluster, database, collection, dataFilters, true, ordered).map(this::mapBulkWriteResult);
+        return putPatch(cluster, database, collection, dataFilters)
+                .onItem().transformToUni(filters -> mongoService.patch(cluster, database, collection, filters, true, ordered))
+                .map(this::mapBulkWriteResult);
     }
 
-    private void putPatch(String cluster, String database, String collection, List<DataFilter> dataFilters) {
+    // the request is read here, the secrets are encrypted and the system fields applied when the Uni completes
+    private Uni<List<DataFilter>> putPatch(String cluster, String database, String collection, List<DataFilter> dataFilters) {
         Model model = modelService.getModel(cluster, database, collection);
+        String method = httpRequest.getHttpMethod();
         dataFilters.stream()
                 .forEach(dataFilter -> {
                     Document filter = ModelUtils.getNormalizedDocument(dataFilter.getFilter(), model);
                     applyUserFilters(model, filter);
                     dataFilter.setFilter(filter);
-                    Document data = ModelUtils.getNormalizedDocument(dataFilter.getData(), model);
-                    ModelUtils.encryptSecrets(data, model, secretProperties);
-                    ModelUtils.applySystemFields(httpRequest.getHttpMethod(), data, model);
-                    dataFilter.setData(data);
+                    dataFilter.setData(ModelUtils.getNormalizedDocument(dataFilter.getData(), model));
+                });
+        List<Document> data = dataFilters.stream().map(DataFilter::getData).collect(Collectors.toList());
+        return ModelUtils.encryptSecretsAsync(data, model, secretProperties)
+                .map(encrypted -> {
+                    encrypted.forEach(document -> ModelUtils.applySystemFields(method, document, model));
+                    return dataFilters;
                 });
     }
 
@@ -414,18 +539,55 @@ public class ApiResource {
         return methodResult;
     }
 
-    private List<Document> methodGetResult(String cluster, String database, String collection, Model model, Document filter, GetOptions getOptions) {
-        List<Document> documents = mongoService.get(cluster, database, collection, filter, getOptions).collectItems().asList().await().indefinitely()
-                .stream()
+    private Uni<List<Document>> methodGetResult(Model model, List<Document> documents, GetOptions getOptions) {
+        List<Document> decrypted = documents.stream()
                 .map(document -> ModelUtils.decryptSecrets(document, model, secretProperties))
                 .collect(Collectors.toList());
-        ModelUtils.validate(documents, model);
-        documents = documents.stream()
-                .map(document -> ModelUtils.addRelations(document, model, mongoService))
-                .map(ModelUtils::toWire)
-                .collect(Collectors.toList());
-        sortMeta(getOptions, documents);
-        return documents;
+        ModelUtils.validate(decrypted, model, getOptions.getFields());
+        return ModelUtils.addRelationsAsync(decrypted, model, getOptions.getFields(), mongoService).map(related -> {
+            List<Document> result = related.stream()
+                    .map(document -> ModelUtils.removeUnrequestedFields(document, getOptions.getFields()))
+                    .map(ModelUtils::toWire)
+                    .collect(Collectors.toList());
+            sortMeta(getOptions, result);
+            return result;
+        });
+    }
+
+    /**
+     * Streams the documents as NDJSON while the cursor is read.
+     * Sorting on '_meta.validationErrors' is not applied, it requires the whole result set.
+     */
+    private StreamingOutput streamGetResult(String cluster, String database, String collection, Model model, Document filter, GetOptions getOptions) {
+        Multi<Document> documents = mongoService.get(cluster, database, collection, filter, getOptions);
+        return outputStream -> {
+            ExportWriter exportWriter = ExportWriter.ndjson(outputStream);
+            writeDocuments(documents, model, getOptions, ModelUtils.validator(model, getOptions.getFields()), exportWriter);
+            exportWriter.finish();
+        };
+    }
+
+    /**
+     * Each document goes through decrypt, validate, relations and toWire before it is written. Relations are resolved
+     * per batch of documents, so only one batch is kept in memory at a time.
+     */
+    private void writeDocuments(Multi<Document> documents, Model model, GetOptions getOptions, UnaryOperator<Document> validator, ExportWriter exportWriter) throws IOException {
+        // the stream is read on this (worker) thread, closing it cancels the cursor if the client goes away
+        try (Stream<Document> stream = documents.subscribe().asStream()) {
+            Iterator<Document> iterator = stream.iterator();
+            List<Document> batch = new ArrayList<>();
+            while (iterator.hasNext()) {
+                Document document = ModelUtils.decryptSecrets(iterator.next(), model, secretProperties);
+                batch.add(validator.apply(document));
+                if (batch.size() == STREAM_BATCH_SIZE || !iterator.hasNext()) {
+                    ModelUtils.addRelations(batch, model, getOptions.getFields(), mongoService);
+                    for (Document d : batch) {
+                        exportWriter.write(ModelUtils.toWire(ModelUtils.removeUnrequestedFields(d, getOptions.getFields())));
+                    }
+                    batch.clear();
+                }
+            }
+        }
     }
 
     private static void sortMeta(GetOptions getOptions, List<Document> list) {
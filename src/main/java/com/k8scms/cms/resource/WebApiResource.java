@@ -27,13 +27,18 @@ import com.k8scms.cms.Constants;
 import com.k8scms.cms.SecretProperties;
 import com.k8scms.cms.filter.ApiLocalAuthenticationFilter;
 import com.k8scms.cms.model.Model;
-import com.k8scms.cms.model.Permissions;
+import com.k8scms.cms.model.CompiledPermissions;
 import com.k8scms.cms.mongo.MongoService;
 import com.k8scms.cms.service.LoginService;
 import com.k8scms.cms.service.ModelService;
+import com.k8scms.cms.service.SessionTokens;
+import com.k8scms.cms.utils.CryptoExecutor;
 import com.k8scms.cms.utils.ModelUtils;
 import com.k8scms.cms.utils.Utils;
+import com.k8scms.cms.utils.VirtualThreads;
+import io.smallrye.mutiny.Uni;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.jboss.resteasy.spi.HttpRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,6 +69,9 @@ public class WebApiResource {
     @Inject
     MongoService mongoService;
 
+    @Inject
+    SessionTokens sessionTokens;
+
     @Context
     HttpRequest httpRequest;
 
@@ -82,15 +90,18 @@ public class WebApiResource {
     @GET
     @Path("user")
     @Produces(MediaType.APPLICATION_JSON)
-    public Document getUser() {
+    public Uni<Document> getUser() {
         log.debug("GET {}", uriInfo.getRequestUri());
         Document user = (Document) httpRequest.getAttribute(Constants.CONTEXT_PROPERTY_USER);
         Model model = modelService.getModel(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionUser());
 
-        ModelUtils.addRelations(user, model, mongoService);
-        ModelUtils.toWire(user);
-        ModelUtils.encryptSecrets(user, model, secretProperties);
-        return user;
+        // the secret1 fields are hashed on the crypto executor, not on the thread of the mongo driver
+        return ModelUtils.addRelationsAsync(Collections.singletonList(user), model, null, mongoService)
+                .onItem().transformToUni(users -> {
+                    ModelUtils.toWire(user);
+                    return ModelUtils.encryptSecretsAsync(users, model, secretProperties);
+                })
+                .map(users -> user);
     }
 
     // return the models which the user has GET access to
@@ -100,29 +111,29 @@ public class WebApiResource {
     @Produces(MediaType.APPLICATION_JSON)
     public List<Model> getModels() {
         log.debug("GET {}", uriInfo.getRequestUri());
-        List<Permissions> permissions = (List<Permissions>) httpRequest.getAttribute(Constants.CONTEXT_PROPERTY_USER_PERMISSIONS);
+        CompiledPermissions permissions = (CompiledPermissions) httpRequest.getAttribute(Constants.CONTEXT_PROPERTY_USER_COMPILED_PERMISSIONS);
         return modelService.getModels().entrySet().stream()
                 .map(entry -> entry.getValue())
-                .filter(model -> Utils.hasPermission(
+                .filter(model -> permissions.hasPermission(
                         Optional.ofNullable(model.getCluster()).orElse(cmsProperties.getCluster()),
                         model.getDatabase(),
                         model.getCollection(),
-                        "GET",
-                        permissions))
+                        "GET"))
                 .collect(Collectors.toList());
     }
 
     @POST
     @Path("login")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response login(Document userNamePassword) {
+    public Uni<Response> login(Document userNamePassword) {
         log.debug("POST {}", uriInfo.getRequestUri());
 
-        Document user = loginService.login(userNamePassword);
-        user.put("password", null);
-        return Response.ok()
-                .cookie(generateUIDCookie(user))
-                .build();
+        return loginService.login(userNamePassword).map(user -> {
+            user.put("password", null);
+            return Response.ok()
+                    .cookie(generateUIDCookie(user))
+                    .build();
+        });
     }
 
     @GET
@@ -138,13 +149,14 @@ public class WebApiResource {
     // it is only used to generate password hashes for development purposes
     @GET
     @Path("generate/{userName}/{password}")
-    public Response generate(
+    public Uni<Response> generate(
             @PathParam("userName") String userName,
             @PathParam("password") String password) {
         if (cmsProperties.getEnv().equals("dev")) {
-            return Response.ok().entity(Utils.encrypt1(userName + "." + password, secretProperties.getSecretEncryptionKey())).build();
+            return CryptoExecutor.submit(() -> Utils.encrypt1(userName + "." + password, secretProperties.getSecretEncryptionKey()))
+                    .map(hash -> Response.ok().entity(hash).build());
         } else {
-            return null;
+            return Uni.createFrom().nullItem();
         }
     }
 
@@ -181,7 +193,7 @@ public class WebApiResource {
     @POST
     @Path("{cluster}/{database}/{collection}/validateAndFindUploadResults")
     @Produces(MediaType.APPLICATION_JSON)
-    public List<Document> validateAndFindUploadResults(
+    public Uni<List<Document>> validateAndFindUploadResults(
             @PathParam(ApiResource.PATH_PARAM_CLUSTER) String cluster,
             @PathParam(ApiResource.PATH_PARAM_DATABASE) String database,
             @PathParam(ApiResource.PATH_PARAM_COLLECTION) String collection,
@@ -193,23 +205,31 @@ public class WebApiResource {
                 .map(map -> ModelUtils.getNormalizedDocument(new Document(map), model))
                 .collect(Collectors.toList());
         ModelUtils.validate(documents, model);
-        ModelUtils.findUploadResults(mongoService, documents, model, secretProperties);
-        documents = documents.stream()
-                .map(ModelUtils::toWire)
-                .collect(Collectors.toList());
-        return documents;
+        // the lookups of the existing documents block, they run on the blocking executor
+        return Uni.createFrom().item(() -> {
+            ModelUtils.findUploadResults(mongoService, documents, model, secretProperties);
+            return documents.stream()
+                    .map(ModelUtils::toWire)
+                    .collect(Collectors.toList());
+        })
+                .runSubscriptionOn(VirtualThreads.executor());
     }
 
     public NewCookie generateUIDCookie(Document user) {
-        String random = UUID.randomUUID().toString();
-        // The value is random.encryptedUsername.timestamp
-        String value = String.format("%s.%s.%s",
-                random,
-                Utils.encrypt2(user.toJson(), secretProperties.getSessionEncryptionKey() + "." + random),
-                new Date().getTime());
-        // Need to Base64 encode for '=' signs that are not permitted in cookie
-        // values
-        value = Base64.getEncoder().encodeToString(value.getBytes());
+        String value;
+        if (secretProperties.getSessionTokenV2() && user.get("_id") instanceof ObjectId) {
+            value = sessionTokens.create(user.getObjectId("_id"));
+        } else {
+            String random = UUID.randomUUID().toString();
+            // The value is random.encryptedUsername.timestamp
+            value = String.format("%s.%s.%s",
+                    random,
+                    Utils.encrypt2(user.toJson(), secretProperties.getSessionEncryptionKey() + "." + random),
+                    new Date().getTime());
+            // Need to Base64 encode for '=' signs that are not permitted in cookie
+            // values
+            value = Base64.getEncoder().encodeToString(value.getBytes());
+        }
         return new NewCookie(
                 Constants.COOKIE_UID,
                 value,
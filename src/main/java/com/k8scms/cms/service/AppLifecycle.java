@@ -24,10 +24,14 @@ package com.k8scms.cms.service;
 
 import com.k8scms.cms.CmsProperties;
 import com.k8scms.cms.Constants;
+import com.k8scms.cms.SecretProperties;
 import com.k8scms.cms.mongo.MongoService;
 import com.k8scms.cms.resource.DataFilter;
+import com.k8scms.cms.utils.SecretCipher;
 import com.k8scms.cms.utils.Utils;
 import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
 import com.mongodb.client.model.IndexOptions;
 import io.quarkus.runtime.StartupEvent;
 import org.bson.Document;
@@ -42,6 +46,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
 
@@ -64,6 +69,9 @@ public class AppLifecycle {
     @Inject
     CmsProperties cmsProperties;
 
+    @Inject
+    SecretProperties secretProperties;
+
     @Inject
     MongoService mongoService;
 
@@ -74,6 +82,7 @@ public class AppLifecycle {
         log.info("{}{}", Constants.ANSI_YELLOW, SPLASH);
         log.info("The application is starting with properties\nCms: {}",
                 Utils.stringify(cmsProperties));
+        SecretCipher.init(secretProperties.getSecretEncryptionKey());
         initModel();
     }
 
@@ -126,8 +135,27 @@ public class AppLifecycle {
                                         .map(document -> document.getBoolean("background"))
                                         .orElse(false)
                                 )
+                                // needed for a second index on the same keys e.g. with a collation
+                                .name(Optional.ofNullable(modelIndex.getOptions())
+                                        .map(document -> document.getString("name"))
+                                        .orElse(null))
+                                .collation(Optional.ofNullable(modelIndex.getOptions())
+                                        .map(document -> (Map<String, Object>) document.get("collation"))
+                                        .map(AppLifecycle::toCollation)
+                                        .orElse(null))
                 ).await().indefinitely());
             }
         });
     }
+
+    // e.g. {"locale": "en", "strength": 2}, the queries use the same collation to use the index
+    private static Collation toCollation(Map<String, Object> collation) {
+        Collation.Builder builder = Collation.builder().locale((String) collation.get("locale"));
+        Optional.ofNullable((Number) collation.get("strength"))
+                .map(Number::intValue)
+                .map(CollationStrength::fromInt)
+                .ifPresent(builder::collationStrength);
+        Optional.ofNullable((Boolean) collation.get("caseLevel")).ifPresent(builder::caseLevel);
+        return builder.build();
+    }
 }
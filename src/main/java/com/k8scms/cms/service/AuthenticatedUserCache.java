@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.service;
+
+import com.k8scms.cms.CmsProperties;
+import com.k8scms.cms.model.AuthenticatedUser;
+import com.k8scms.cms.mongo.CollectionChange;
+import com.k8scms.cms.mongo.MongoService;
+import com.k8scms.cms.utils.ExpiringCache;
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.subscription.Cancellable;
+import org.bson.BsonTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the resolved users of the sessions (cookie or basic authentication), so that authentication does not query
+ * the users and roles on every request. The users and the roles are watched by change streams, any change on them,
+ * from this node or another one, clears it. Without change streams (no replica set) the changes of other nodes are
+ * picked up when the entries expire.
+ */
+@ApplicationScoped
+public class AuthenticatedUserCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthenticatedUserCache.class);
+
+    @Inject
+    CmsProperties cmsProperties;
+
+    @Inject
+    MongoService mongoService;
+
+    private ExpiringCache<String, AuthenticatedUser> authenticatedUsers;
+    // bumped on every clear, a lookup that started before a change does not put its stale user
+    private final AtomicLong generation = new AtomicLong();
+    // collection -> the watch of its changes
+    private final Map<String, Cancellable> subscriptions = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void postConstruct() {
+        authenticatedUsers = new ExpiringCache<>(cmsProperties.getAuthenticatedUserCacheSize(), cmsProperties.getAuthenticatedUserCacheTtl() * 1000);
+    }
+
+    @PreDestroy
+    void preDestroy() {
+        subscriptions.values().forEach(Cancellable::cancel);
+    }
+
+    public AuthenticatedUser get(String session) {
+        return authenticatedUsers.get(session);
+    }
+
+    // take the generation before the lookup of the user
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public synchronized void put(String session, AuthenticatedUser authenticatedUser, long generation) {
+        if (this.generation.get() == generation) {
+            authenticatedUsers.put(session, authenticatedUser);
+        }
+    }
+
+    private synchronized void clear() {
+        generation.incrementAndGet();
+        authenticatedUsers.clear();
+    }
+
+    // a watch that failed is started again
+    @Scheduled(every = "{cms.scheduler.authenticated-user-cache.every}")
+    void watch() {
+        watch(cmsProperties.getCollectionUser());
+        watch(cmsProperties.getCollectionRole());
+    }
+
+    private void watch(String collection) {
+        if (subscriptions.containsKey(collection)) {
+            return;
+        }
+        BsonTimestamp operationTime = mongoService.getOperationTime(cmsProperties.getCluster(), cmsProperties.getDatabase());
+        if (operationTime == null) {
+            logger.debug("The {} are not watched, change streams require a replica set", collection);
+            return;
+        }
+        // the changes made while there was no watch are not known
+        clear();
+        AtomicBoolean ended = new AtomicBoolean();
+        Cancellable subscription = mongoService.watch(cmsProperties.getCluster(), cmsProperties.getDatabase(), collection, operationTime)
+                .subscribe()
+                .with(change -> {
+                    logger.debug("{} changed, clearing the authenticated users", collection);
+                    clear();
+                }, throwable -> {
+                    logger.warn(String.format("The watch of %s failed, it starts again", collection), throwable);
+                    clear();
+                    ended.set(true);
+                    subscriptions.remove(collection);
+                }, () -> {
+                    ended.set(true);
+                    subscriptions.remove(collection);
+                });
+        subscriptions.put(collection, subscription);
+        if (ended.get()) {
+            // it ended before it was registered
+            subscriptions.remove(collection, subscription);
+        }
+    }
+
+    // the writes of this node clear it right away, before their change events arrive
+    void onCollectionChange(@Observes CollectionChange collectionChange) {
+        if (collectionChange.is(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionUser())
+                || collectionChange.is(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionRole())) {
+            logger.debug("Users or roles changed, clearing the authenticated users");
+            clear();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.service;
+
+import com.k8scms.cms.CmsProperties;
+import com.k8scms.cms.utils.ExpiringCache;
+import com.k8scms.cms.utils.Utils;
+import org.bson.Document;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.security.SecureRandom;
+import java.util.Objects;
+
+/**
+ * Remembers the user/password pairs of the basic authentication that were verified with bcrypt.
+ * The password is kept only as an HMAC with a key that never leaves the process, and an entry counts only while the
+ * user's stored password hash is the one it was verified against. The stored hash is the one of the
+ * {@link AuthenticatedUserCache}, so a changed password takes effect once that cache is cleared: immediately on the
+ * node that changed it, when the change stream of the users arrives on the other nodes, or when the entry expires
+ * without change streams.
+ */
+@ApplicationScoped
+public class CredentialCache {
+
+    @Inject
+    CmsProperties cmsProperties;
+
+    private byte[] key;
+    // user id:hmac(password) -> the verified password hash
+    private ExpiringCache<String, String> verified;
+
+    @PostConstruct
+    void postConstruct() {
+        key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        verified = new ExpiringCache<>(cmsProperties.getCredentialCacheSize(), cmsProperties.getCredentialCacheTtl() * 1000);
+    }
+
+    public boolean isVerified(Document user, String password) {
+        String passwordHash = user.getString("password");
+        return passwordHash != null && passwordHash.equals(verified.get(toKey(user, password)));
+    }
+
+    public void setVerified(Document user, String password) {
+        verified.put(toKey(user, password), user.getString("password"));
+    }
+
+    private String toKey(Document user, String password) {
+        return Objects.toString(user.get("_id")) + ":" + Utils.hmac(key, password);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.service;
+
+import com.k8scms.cms.utils.CryptoExecutor;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+
+import javax.enterprise.context.ApplicationScoped;
+
+// the saturation of the crypto executor, under /metrics/application
+@ApplicationScoped
+public class CryptoMetrics {
+
+    @Gauge(name = "cms.crypto.active", unit = MetricUnits.NONE, absolute = true,
+            description = "Password hashes and checks in progress")
+    public int getActive() {
+        return CryptoExecutor.getActiveCount();
+    }
+
+    @Gauge(name = "cms.crypto.queued", unit = MetricUnits.NONE, absolute = true,
+            description = "Password hashes and checks waiting for a crypto thread")
+    public int getQueued() {
+        return CryptoExecutor.getQueueSize();
+    }
+
+    @Gauge(name = "cms.crypto.threads", unit = MetricUnits.NONE, absolute = true,
+            description = "Threads of the crypto executor")
+    public int getThreads() {
+        return CryptoExecutor.getPoolSize();
+    }
+
+    @Gauge(name = "cms.crypto.completed", unit = MetricUnits.NONE, absolute = true,
+            description = "Password hashes and checks completed")
+    public long getCompleted() {
+        return CryptoExecutor.getCompletedCount();
+    }
+
+    @Gauge(name = "cms.crypto.rejected", unit = MetricUnits.NONE, absolute = true,
+            description = "Password hashes and checks rejected with 429")
+    public long getRejected() {
+        return CryptoExecutor.getRejectedCount();
+    }
+}
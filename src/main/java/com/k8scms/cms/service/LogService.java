@@ -26,23 +26,32 @@ import com.k8scms.cms.CmsProperties;
 import com.k8scms.cms.model.Model;
 import com.k8scms.cms.mongo.MongoService;
 import com.k8scms.cms.utils.ModelUtils;
+import io.quarkus.runtime.ShutdownEvent;
 import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
 import javax.ws.rs.HttpMethod;
 import javax.ws.rs.core.UriInfo;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @ApplicationScoped
 public class LogService {
     private static final Logger logger = LoggerFactory.getLogger(LogService.class);
+    private static final long DROP_WARNING_INTERVAL = 10000;
 
     @Inject
     MongoService mongoService;
@@ -53,6 +62,39 @@ public class LogService {
     @Inject
     CmsProperties cmsProperties;
 
+    // the logs are written in batches by the writer thread, the requests do not wait for mongo
+    private BlockingQueue<Document> queue;
+    private Thread writer;
+    private volatile boolean running;
+    private final AtomicLong droppedLogs = new AtomicLong();
+    private final AtomicLong lastDropWarning = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+        queue = new ArrayBlockingQueue<>(cmsProperties.getLogQueueSize());
+        running = true;
+        writer = new Thread(this::write, "cms-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        // drain the queue before mongo is closed
+        running = false;
+        try {
+            writer.join(cmsProperties.getMongoTimeout() * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            logger.warn("{} logs were not written on shutdown", queue.size());
+        }
+    }
+
+    public long getDroppedLogs() {
+        return droppedLogs.get();
+    }
+
     public void log(String cluster, String database, String collection, String method, List<Document> bodyAsArray, String userName, UriInfo uriInfo) {
         // do not log secrets
         bodyAsArray.forEach(body -> doNotLogSecrets(cluster, database, collection, body));
@@ -68,8 +110,7 @@ public class LogService {
     }
 
     private void doNotLogSecrets(String cluster, String database, String collection, Document body) {
-        modelService.getModel(cluster, database, collection).getFields().stream()
-                .filter(f -> f.getEncryption() != null)
+        modelService.getModel(cluster, database, collection).getCompiled().getSecretFields()
                 .forEach(field -> body.put(field.getName(), "********"));
     }
 
@@ -87,14 +128,70 @@ public class LogService {
             Model logModel = modelService.getModel(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionLog());
             ModelUtils.applySystemFields(HttpMethod.POST, log, logModel);
             logger.info(log.toJson());
-            mongoService.post(
+            // never block the request, when the writer cannot keep up the log is only kept in the application log
+            if (!running || !queue.offer(log)) {
+                dropped();
+            }
+        }
+    }
+
+    // one warning every DROP_WARNING_INTERVAL at most, the drops come in bursts
+    private void dropped() {
+        long dropped = droppedLogs.incrementAndGet();
+        long now = System.currentTimeMillis();
+        long last = lastDropWarning.get();
+        if (now - last >= DROP_WARNING_INTERVAL && lastDropWarning.compareAndSet(last, now)) {
+            logger.warn("Log queue is full or closed, {} logs dropped so far", dropped);
+        }
+    }
+
+    private void write() {
+        int batchSize = cmsProperties.getLogBatchSize();
+        long flushInterval = cmsProperties.getLogFlushInterval();
+        List<Document> batch = new ArrayList<>(batchSize);
+        long flushAt = Long.MAX_VALUE;
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+            long now = System.currentTimeMillis();
+            if (!batch.isEmpty() && (batch.size() >= batchSize || now >= flushAt || !running)) {
+                insert(batch);
+                batch = new ArrayList<>(batchSize);
+                flushAt = Long.MAX_VALUE;
+                continue;
+            }
+            try {
+                Document log = queue.poll(Math.min(flushAt - now, flushInterval), TimeUnit.MILLISECONDS);
+                if (log != null) {
+                    if (batch.isEmpty()) {
+                        flushAt = now + flushInterval;
+                    }
+                    batch.add(log);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queue.drainTo(batch);
+                if (!batch.isEmpty()) {
+                    insert(batch);
+                }
+                return;
+            }
+        }
+    }
+
+    private void insert(List<Document> batch) {
+        Model logModel = modelService.getModel(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionLog());
+        try {
+            // nothing reads the logs back, no CollectionChange for them
+            mongoService.insert(
                     logModel.getCluster(),
                     logModel.getDatabase(),
                     logModel.getCollection(),
-                    Collections.singletonList(log),
-                    true)
+                    batch)
                     .await()
-                    .indefinitely();
+                    .atMost(Duration.ofSeconds(cmsProperties.getMongoTimeout()));
+        } catch (Exception e) {
+            // the writer must keep running, the logs are still in the application log
+            logger.error(String.format("Could not write %d logs", batch.size()), e);
         }
     }
 }
@@ -27,9 +27,12 @@ import com.k8scms.cms.Constants;
 import com.k8scms.cms.SecretProperties;
 import com.k8scms.cms.model.Model;
 import com.k8scms.cms.mongo.MongoService;
+import com.k8scms.cms.utils.CryptoExecutor;
 import com.k8scms.cms.utils.ModelUtils;
 import com.k8scms.cms.utils.Utils;
 import io.quarkus.security.UnauthorizedException;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
 import org.bson.Document;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -53,80 +56,97 @@ public class LoginService {
     @Inject
     SecretProperties secretProperties;
 
-    public Document login(Document userNamePassword) {
+    // the bcrypt check runs on the crypto executor and the LDAP check on a worker thread, no thread waits for mongo
+    public Uni<Document> login(Document userNamePassword) {
         String name = userNamePassword.getString("name");
         String password = userNamePassword.getString("password");
-        Document user = findUser(Utils.getUserFilter(name));
-        if (user == null) {
-            // find at least one
-            if (findUser(new Document()) == null) {
-                // No one exists, create one
-                user = createSu(userNamePassword);
-            } else {
-                // User not found
-                throw new UnauthorizedException("User not found");
-            }
-        } else {
-            String securityRealm = user.getString("securityRealm");
-            if (securityRealm == null) {
-                throw new IllegalArgumentException("SecurityRealm not set for user");
-            }
-            switch (securityRealm) {
-                case Constants.SECURITY_REALM_LOCAL:
-                    if (!Utils.checkEncrypt1(
-                            password,
-                            secretProperties.getSecretEncryptionKey(),
-                            (String) user.get("password"))) {
-                        throw Utils.generateUnauthorizedException("Invalid password", cmsProperties.getEnv());
+        return findUser(Utils.getUserFilter(name))
+                .onItem().transformToUni(user -> {
+                    if (user != null) {
+                        if (Constants.SECURITY_REALM_LOCAL.equals(user.getString("securityRealm"))) {
+                            return CryptoExecutor.submit(() -> checkPassword(user, name, password));
+                        }
+                        return Uni.createFrom().item(user)
+                                .emitOn(Infrastructure.getDefaultWorkerPool())
+                                .map(u -> checkPassword(u, name, password));
                     }
-                    break;
-                case Constants.SECURITY_REALM_LDAP:
-                    Utils.checkLdapUser(name, password, cmsProperties, secretProperties);
-                    break;
-                default:
-                    throw Utils.generateUnauthorizedException(String.format("Invalid security realm '%s'", securityRealm), cmsProperties.getEnv());
-            }
+                    // find at least one
+                    return findUser(new Document()).onItem().transformToUni(anyUser -> {
+                        if (anyUser == null) {
+                            // No one exists, create one
+                            return createSu(userNamePassword);
+                        } else {
+                            // User not found
+                            throw new UnauthorizedException("User not found");
+                        }
+                    });
+                })
+                .map(user -> {
+                    // remove the password
+                    user.put("password", null);
+                    return user;
+                });
+    }
+
+    private Document checkPassword(Document user, String name, String password) {
+        String securityRealm = user.getString("securityRealm");
+        if (securityRealm == null) {
+            throw new IllegalArgumentException("SecurityRealm not set for user");
+        }
+        switch (securityRealm) {
+            case Constants.SECURITY_REALM_LOCAL:
+                if (!Utils.checkEncrypt1(
+                        password,
+                        secretProperties.getSecretEncryptionKey(),
+                        (String) user.get("password"))) {
+                    throw Utils.generateUnauthorizedException("Invalid password", cmsProperties.getEnv());
+                }
+                break;
+            case Constants.SECURITY_REALM_LDAP:
+                Utils.checkLdapUser(name, password, cmsProperties, secretProperties);
+                break;
+            default:
+                throw Utils.generateUnauthorizedException(String.format("Invalid security realm '%s'", securityRealm), cmsProperties.getEnv());
         }
-        // remove the password
-        user.put("password", null);
         return user;
     }
 
-    public Document findUser(Document filter) {
+    // null item when no user matches
+    public Uni<Document> findUser(Document filter) {
         return mongoService.get(
                 cmsProperties.getCluster(),
                 cmsProperties.getDatabase(),
                 cmsProperties.getCollectionUser(),
-                filter
+                filter,
+                Utils.getUserGetOptions()
         )
-                .toUni()
-                .await()
-                .indefinitely();
+                .toUni();
     }
 
-    public Document createSu(Document userNamePassword) {
-        Document user = new Document();
-        user.put("name", userNamePassword.getString("name"));
-        user.put("permissions", Arrays.asList(new Document()
-                .append("cluster", ".*")
-                .append("database", ".*")
-                .append("collection", ".*")
-                .append("method", ".*")));
-        user.put("securityRealm", Constants.SECURITY_REALM_LOCAL);
-        user.put("password", Utils.encrypt1(
+    public Uni<Document> createSu(Document userNamePassword) {
+        // bcrypt on the crypto executor, not on the thread of the mongo driver
+        return CryptoExecutor.submit(() -> Utils.encrypt1(
                 userNamePassword.getString("password"),
-                secretProperties.getSecretEncryptionKey()
-        ));
-        Model model = modelService.getModel(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionUser());
-        ModelUtils.applySystemFields(HttpMethod.POST, user, model);
-        mongoService.post(
-                cmsProperties.getCluster(),
-                cmsProperties.getDatabase(),
-                cmsProperties.getCollectionUser(),
-                Collections.singletonList(user),
-                true)
-                .await()
-                .indefinitely();
-        return user;
+                secretProperties.getSecretEncryptionKey()))
+                .onItem().transformToUni(password -> {
+                    Document user = new Document();
+                    user.put("name", userNamePassword.getString("name"));
+                    user.put("permissions", Arrays.asList(new Document()
+                            .append("cluster", ".*")
+                            .append("database", ".*")
+                            .append("collection", ".*")
+                            .append("method", ".*")));
+                    user.put("securityRealm", Constants.SECURITY_REALM_LOCAL);
+                    user.put("password", password);
+                    Model model = modelService.getModel(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionUser());
+                    ModelUtils.applySystemFields(HttpMethod.POST, user, model);
+                    return mongoService.post(
+                            cmsProperties.getCluster(),
+                            cmsProperties.getDatabase(),
+                            cmsProperties.getCollectionUser(),
+                            Collections.singletonList(user),
+                            true)
+                            .map(bulkWriteResult -> user);
+                });
     }
 }
@@ -27,20 +27,49 @@ import com.k8scms.cms.exception.ModelNotFoundException;
 import com.k8scms.cms.model.Model;
 import com.k8scms.cms.mongo.MongoService;
 import com.k8scms.cms.utils.Utils;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
 import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.smallrye.mutiny.subscription.Cancellable;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * The registry of the models. The cms-model collection is watched by a change stream and every change is applied to
+ * the registry, the full scan runs every cms.model-full-scan-interval seconds as a safety net. Without change streams
+ * (no replica set) the full scan runs on every cms.scheduler.model-service.every.
+ */
 @ApplicationScoped
 public class ModelService {
 
-    private Map<String, Model> models;
+    private static final Logger logger = LoggerFactory.getLogger(ModelService.class);
+
+    // replaced as a whole, the readers never see a half applied change
+    private volatile Map<String, Model> models = Collections.emptyMap();
+
+    // the model documents by their _id, guarded by this
+    private Map<Object, Document> documents = new HashMap<>();
+    private Map<Object, Model> modelsById = new HashMap<>();
+    // the changes that arrived during a full scan, applied on top of it
+    private List<ChangeStreamDocument<Document>> pendingChanges;
+    private long version;
+    private long lastFullScan;
+
+    private volatile Cancellable subscription;
 
     @Inject
     CmsProperties cmsProperties;
@@ -53,19 +82,155 @@ public class ModelService {
         updateModels();
     }
 
+    @PreDestroy
+    void preDestroy() {
+        Cancellable cancellable = subscription;
+        if (cancellable != null) {
+            cancellable.cancel();
+        }
+    }
+
     @Scheduled(every = "{cms.scheduler.model-service.every}")
     public void updateModels() {
-        models = mongoService.get(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionModel(), new Document())
-                .map(document -> Utils.fromJson(document.toJson(), Model.class))
-                .collectItems()
-                .asList()
-                .await()
-                .indefinitely()
-                .stream()
-                .collect(Collectors.toMap(
-                        model -> String.format("%s.%s.%s", Optional.ofNullable(model.getCluster()).orElse(cmsProperties.getCluster()), model.getDatabase(), model.getCollection()),
-                        model -> model
-                ));
+        if (subscription == null) {
+            watch();
+        }
+        synchronized (this) {
+            if (pendingChanges != null
+                    || subscription != null && System.currentTimeMillis() - lastFullScan < cmsProperties.getModelFullScanInterval() * 1000) {
+                return;
+            }
+            pendingChanges = new ArrayList<>();
+        }
+        List<Document> scannedDocuments;
+        try {
+            scannedDocuments = mongoService.get(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionModel(), new Document())
+                    .collectItems()
+                    .asList()
+                    .await()
+                    .indefinitely();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                // the changes are lost with the scan, the next scan brings them
+                pendingChanges = null;
+            }
+            throw e;
+        }
+        Map<String, Model> updatedModels;
+        synchronized (this) {
+            Map<Object, Document> oldDocuments = documents;
+            Map<Object, Model> oldModelsById = modelsById;
+            documents = new HashMap<>();
+            modelsById = new HashMap<>();
+            for (Document document : scannedDocuments) {
+                Object id = Utils.equalityKey(document.get("_id"));
+                if (document.equals(oldDocuments.get(id))) {
+                    // unchanged, no need to parse and compile it again
+                    documents.put(id, document);
+                    modelsById.put(id, oldModelsById.get(id));
+                } else if (!putDocument(id, document) && oldModelsById.containsKey(id)) {
+                    documents.put(id, oldDocuments.get(id));
+                    modelsById.put(id, oldModelsById.get(id));
+                }
+            }
+            pendingChanges.forEach(this::applyChange);
+            pendingChanges = null;
+            lastFullScan = System.currentTimeMillis();
+            updatedModels = swap();
+        }
+        mongoService.updateCachedCollections(updatedModels.values());
+    }
+
+    private void watch() {
+        BsonTimestamp operationTime = mongoService.getOperationTime(cmsProperties.getCluster(), cmsProperties.getDatabase());
+        if (operationTime == null) {
+            logger.debug("The models are not watched, change streams require a replica set");
+            return;
+        }
+        // the changes from before the full scan are applied on top of it, no change is lost in between
+        synchronized (this) {
+            lastFullScan = 0;
+        }
+        AtomicBoolean ended = new AtomicBoolean();
+        Cancellable cancellable = mongoService.watch(cmsProperties.getCluster(), cmsProperties.getDatabase(), cmsProperties.getCollectionModel(), operationTime)
+                // the cached collections of the changed models may block on their load
+                .emitOn(Infrastructure.getDefaultWorkerPool())
+                .subscribe()
+                .with(this::onChange, throwable -> {
+                    logger.warn("The watch of the models failed, a new one starts with a full scan", throwable);
+                    ended.set(true);
+                    subscription = null;
+                }, () -> {
+                    ended.set(true);
+                    subscription = null;
+                });
+        subscription = cancellable;
+        if (ended.get()) {
+            // it ended before it was assigned
+            subscription = null;
+        }
+    }
+
+    private void onChange(ChangeStreamDocument<Document> change) {
+        Map<String, Model> updatedModels;
+        synchronized (this) {
+            if (pendingChanges != null) {
+                pendingChanges.add(change);
+                return;
+            }
+            if (!applyChange(change)) {
+                return;
+            }
+            updatedModels = swap();
+        }
+        mongoService.updateCachedCollections(updatedModels.values());
+    }
+
+    // guarded by this, true when the registry changed
+    private boolean applyChange(ChangeStreamDocument<Document> change) {
+        switch (change.getOperationType()) {
+            case INSERT:
+            case UPDATE:
+            case REPLACE:
+                Document document = change.getFullDocument();
+                if (document == null) {
+                    // deleted after the update, the delete follows
+                    return false;
+                }
+                putDocument(Utils.equalityKey(document.get("_id")), document);
+                return true;
+            case DELETE:
+                Object id = Utils.equalityKey(Utils.toDocument(change.getDocumentKey()).get("_id"));
+                documents.remove(id);
+                return modelsById.remove(id) != null;
+            default:
+                // drop, rename or invalidate, the stream completes and a new watch starts with a full scan
+                logger.warn("The models collection was {}", change.getOperationType());
+                return false;
+        }
+    }
+
+    // false when the model is not valid, the previous version of it stays in use
+    private boolean putDocument(Object id, Document document) {
+        try {
+            modelsById.put(id, Utils.fromJson(document.toJson(), Model.class).compile());
+            documents.put(id, document);
+            return true;
+        } catch (RuntimeException e) {
+            logger.warn("Model {} is not valid", id, e);
+            return false;
+        }
+    }
+
+    // guarded by this
+    private Map<String, Model> swap() {
+        Map<String, Model> updatedModels = new HashMap<>();
+        modelsById.values().forEach(model -> updatedModels.put(
+                String.format("%s.%s.%s", Optional.ofNullable(model.getCluster()).orElse(cmsProperties.getCluster()), model.getDatabase(), model.getCollection()),
+                model));
+        models = Collections.unmodifiableMap(updatedModels);
+        logger.debug("Models version {}, {} models", ++version, updatedModels.size());
+        return models;
     }
 
     public Map<String, Model> getModels() {
@@ -0,0 +1,171 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.service;
+
+import com.k8scms.cms.CmsProperties;
+import com.k8scms.cms.SecretProperties;
+import com.k8scms.cms.model.Field;
+import com.k8scms.cms.model.GetOptions;
+import com.k8scms.cms.model.Model;
+import com.k8scms.cms.mongo.MongoService;
+import com.k8scms.cms.resource.DataFilter;
+import com.k8scms.cms.utils.SecretCipher;
+import io.quarkus.scheduler.Scheduled;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Re-encrypts the Jasypt secret2 values with AES-GCM (see SecretCipher), cms.secret-migration-batch-size documents
+ * per collection on every run. A value is replaced only if it did not change since it was read. The collections are
+ * paged by _id, so the values that cannot be decrypted (another key, corrupted) do not hold the others back, they are
+ * counted and logged at the end of every pass. Turn it on with cms.secret-migration=true once no node writes or reads
+ * the Jasypt values only.
+ */
+@ApplicationScoped
+public class SecretMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(SecretMigration.class);
+    private static final Pattern ENCRYPTED = Pattern.compile("^" + Pattern.quote(SecretCipher.PREFIX));
+
+    @Inject
+    CmsProperties cmsProperties;
+
+    @Inject
+    SecretProperties secretProperties;
+
+    @Inject
+    ModelService modelService;
+
+    @Inject
+    MongoService mongoService;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    // cluster.database.collection -> the last _id of the previous batch, none at the start of a pass
+    private final Map<String, Object> cursors = new HashMap<>();
+    // cluster.database.collection -> the values of the pass that could not be decrypted
+    private final Map<String, Integer> failures = new HashMap<>();
+
+    @Scheduled(every = "{cms.scheduler.secret-migration.every}")
+    public void migrate() {
+        if (!cmsProperties.getSecretMigration() || !secretProperties.getSecret2V2() || !running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Model model : modelService.getModels().values()) {
+                List<Field> fields = model.getCompiled().getSecretFields().stream()
+                        .filter(field -> Field.ENCRYPTION_SECRET2.equals(field.getEncryption()))
+                        .collect(Collectors.toList());
+                if (!fields.isEmpty()) {
+                    try {
+                        migrate(model, fields);
+                    } catch (RuntimeException e) {
+                        logger.warn("Could not re-encrypt the secrets of {}.{}", model.getDatabase(), model.getCollection(), e);
+                    }
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+
+    // called by one run at a time
+    private void migrate(Model model, List<Field> fields) {
+        String cluster = Optional.ofNullable(model.getCluster()).orElse(cmsProperties.getCluster());
+        String collectionKey = String.format("%s.%s.%s", cluster, model.getDatabase(), model.getCollection());
+        String key = secretProperties.getSecretEncryptionKey();
+        List<Document> legacyFilters = fields.stream()
+                .map(field -> new Document(field.getName(), new Document("$type", "string").append("$not", ENCRYPTED)))
+                .collect(Collectors.toList());
+        Document filter = new Document("$or", legacyFilters);
+        Object cursor = cursors.get(collectionKey);
+        if (cursor != null) {
+            // mongo compares the ids of the same type only, the ids of another type wait for the next pass
+            filter = new Document("$and", Arrays.asList(filter, new Document("_id", new Document("$gt", cursor))));
+        }
+        GetOptions getOptions = new GetOptions();
+        getOptions.setLimit(cmsProperties.getSecretMigrationBatchSize());
+        getOptions.setSort("_id");
+        getOptions.setSortDirection(1);
+        // at most cms.limit
+        int batchSize = mongoService.getLimit(getOptions);
+        List<Document> documents = mongoService.get(cluster, model.getDatabase(), model.getCollection(), filter, getOptions)
+                .collectItems().asList().await().indefinitely();
+
+        List<DataFilter> dataFilters = new ArrayList<>();
+        int failed = 0;
+        for (Document document : documents) {
+            Document dataFilter = new Document("_id", document.get("_id"));
+            Document data = new Document();
+            for (Field field : fields) {
+                Object value = document.get(field.getName());
+                if (value instanceof String && !SecretCipher.isEncrypted((String) value)) {
+                    try {
+                        data.put(field.getName(), SecretCipher.encrypt(SecretCipher.decrypt((String) value, key), key));
+                        dataFilter.put(field.getName(), value);
+                    } catch (RuntimeException e) {
+                        // another key or a corrupted value, it is left as it is
+                        failed++;
+                    }
+                }
+            }
+            if (!data.isEmpty()) {
+                DataFilter update = new DataFilter();
+                update.setFilter(dataFilter);
+                update.setData(data);
+                dataFilters.add(update);
+            }
+        }
+        if (!dataFilters.isEmpty()) {
+            long modified = mongoService.patch(cluster, model.getDatabase(), model.getCollection(), dataFilters, false, false)
+                    .await().indefinitely()
+                    .getModifiedCount();
+            logger.info("Re-encrypted the secrets of {} documents of {}", modified, collectionKey);
+        }
+        failed += failures.getOrDefault(collectionKey, 0);
+        if (documents.size() < batchSize) {
+            // the end of the pass, the next one starts from the first _id
+            cursors.remove(collectionKey);
+            failures.remove(collectionKey);
+            if (failed > 0) {
+                logger.warn("{} secret2 values of {} stay unmigrated, they could not be decrypted", failed, collectionKey);
+            }
+        } else {
+            cursors.put(collectionKey, documents.get(documents.size() - 1).get("_id"));
+            failures.put(collectionKey, failed);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.service;
+
+import com.k8scms.cms.CmsProperties;
+import com.k8scms.cms.SecretProperties;
+import com.k8scms.cms.utils.Utils;
+import org.bson.types.ObjectId;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * The session tokens of the UID cookie, v2.userId.expires.signature, signed with HMAC-SHA256 by a key derived once
+ * from secret.session-encryption-key. A token is verified in microseconds, unlike the Jasypt encrypted user of the
+ * older cookies that ApiLocalAuthentication still accepts until they expire.
+ */
+@ApplicationScoped
+public class SessionTokens {
+
+    public static final String PREFIX = "v2.";
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    @Inject
+    CmsProperties cmsProperties;
+
+    @Inject
+    SecretProperties secretProperties;
+
+    private SecretKeySpec key;
+    // a Mac is not thread safe, it is initialized once per thread
+    private ThreadLocal<Mac> macs;
+
+    @PostConstruct
+    void postConstruct() {
+        try {
+            byte[] keyBytes = MessageDigest.getInstance("SHA-256")
+                    .digest(("session-token-v2:" + secretProperties.getSessionEncryptionKey()).getBytes(StandardCharsets.UTF_8));
+            key = new SecretKeySpec(keyBytes, ALGORITHM);
+            macs = ThreadLocal.withInitial(() -> {
+                try {
+                    Mac mac = Mac.getInstance(ALGORITHM);
+                    mac.init(key);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static boolean isToken(String value) {
+        return value.startsWith(PREFIX);
+    }
+
+    public String create(ObjectId userId) {
+        String content = PREFIX + userId.toHexString() + "." + (System.currentTimeMillis() + secretProperties.getSessionTimeout() * 1000L);
+        return content + "." + sign(content);
+    }
+
+    /**
+     * @return the user id of a valid token that has not expired
+     */
+    public ObjectId verify(String token) {
+        int signatureIndex = token.lastIndexOf('.');
+        String content = token.substring(0, Math.max(signatureIndex, 0));
+        String[] tokens = content.split("\\.");
+        if (tokens.length != 3
+                || !MessageDigest.isEqual(sign(content).getBytes(StandardCharsets.US_ASCII), token.substring(signatureIndex + 1).getBytes(StandardCharsets.US_ASCII))) {
+            throw Utils.generateUnauthorizedException("Invalid session token", cmsProperties.getEnv());
+        }
+        long expires;
+        try {
+            expires = Long.parseLong(tokens[2]);
+        } catch (NumberFormatException e) {
+            throw Utils.generateUnauthorizedException("Invalid session token", cmsProperties.getEnv());
+        }
+        if (expires < System.currentTimeMillis()) {
+            throw Utils.generateUnauthorizedException("Session token timed out", cmsProperties.getEnv());
+        }
+        if (!ObjectId.isValid(tokens[1])) {
+            throw Utils.generateUnauthorizedException("Invalid session token", cmsProperties.getEnv());
+        }
+        return new ObjectId(tokens[1]);
+    }
+
+    private String sign(String content) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(macs.get().doFinal(content.getBytes(StandardCharsets.UTF_8)));
+    }
+}
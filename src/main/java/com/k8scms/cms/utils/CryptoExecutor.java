@@ -0,0 +1,118 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.utils;
+
+import com.k8scms.cms.exception.TooManyRequestsException;
+import io.smallrye.mutiny.Uni;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.ConfigProvider;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The executor of the bcrypt hashing and verification. It has cms.crypto-threads threads and a queue of
+ * cms.crypto-queue-size tasks, the tasks which do not fit fail fast with a {@link TooManyRequestsException} (429). A
+ * login storm or an upload of many secret1 fields waits here instead of taking the worker threads of the other
+ * requests. The callers never wait for a task, they get its result as a Uni.
+ */
+public class CryptoExecutor {
+
+    private static final AtomicLong rejected = new AtomicLong();
+
+    private CryptoExecutor() {
+    }
+
+    // created on first use, the configuration is read once
+    private static class Holder {
+        static final ThreadPoolExecutor EXECUTOR = create();
+    }
+
+    private static ThreadPoolExecutor create() {
+        Config config = ConfigProvider.getConfig();
+        int threads = config.getOptionalValue("cms.crypto-threads", Integer.class).orElse(0);
+        if (threads <= 0) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        }
+        int queueSize = config.getOptionalValue("cms.crypto-queue-size", Integer.class).orElse(100);
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "cms-crypto-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static <T> Uni<T> submit(Supplier<T> supplier) {
+        return Uni.createFrom().emitter(emitter -> {
+            try {
+                Holder.EXECUTOR.execute(() -> {
+                    T item;
+                    try {
+                        item = supplier.get();
+                    } catch (Throwable e) {
+                        emitter.fail(e);
+                        return;
+                    }
+                    emitter.complete(item);
+                });
+            } catch (RejectedExecutionException e) {
+                emitter.fail(rejected());
+            }
+        });
+    }
+
+    private static TooManyRequestsException rejected() {
+        rejected.incrementAndGet();
+        return new TooManyRequestsException("Too many password hashes in progress, try again later");
+    }
+
+    public static int getActiveCount() {
+        return Holder.EXECUTOR.getActiveCount();
+    }
+
+    public static int getQueueSize() {
+        return Holder.EXECUTOR.getQueue().size();
+    }
+
+    public static int getPoolSize() {
+        return Holder.EXECUTOR.getMaximumPoolSize();
+    }
+
+    public static long getCompletedCount() {
+        return Holder.EXECUTOR.getCompletedTaskCount();
+    }
+
+    public static long getRejectedCount() {
+        return rejected.get();
+    }
+}
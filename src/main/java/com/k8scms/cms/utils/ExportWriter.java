@@ -0,0 +1,314 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.utils;
+
+import org.bson.Document;
+import org.bson.types.Decimal128;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes documents (already in their wire form) one at a time to an output stream, nothing but the current row is
+ * kept in memory. The columns are used by the tabular formats, the NDJSON formats write the whole documents.
+ */
+public abstract class ExportWriter {
+
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_XLSX = "xlsx";
+    public static final String FORMAT_NDJSON = "ndjson";
+    public static final String MEDIA_TYPE_CSV = "text/csv; charset=UTF-8";
+    public static final String MEDIA_TYPE_XLSX = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+    public static final String MEDIA_TYPE_GZIP = "application/gzip";
+
+    protected final Writer writer;
+    protected final List<String> columns;
+
+    protected ExportWriter(Writer writer, List<String> columns) {
+        this.writer = writer;
+        this.columns = columns;
+    }
+
+    public static ExportWriter of(String format, List<String> columns, OutputStream outputStream) throws IOException {
+        switch (format) {
+            case FORMAT_CSV:
+                return new Csv(outputStream, columns);
+            case FORMAT_XLSX:
+                return new Xlsx(outputStream, columns);
+            case FORMAT_NDJSON:
+                return new Ndjson(new GZIPOutputStream(outputStream), columns);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown export format '%s'", format));
+        }
+    }
+
+    // NDJSON without compression, e.g. for streaming the GET results
+    public static ExportWriter ndjson(OutputStream outputStream) {
+        return new Ndjson(outputStream, null);
+    }
+
+    public static String getMediaType(String format) {
+        switch (format) {
+            case FORMAT_CSV:
+                return MEDIA_TYPE_CSV;
+            case FORMAT_XLSX:
+                return MEDIA_TYPE_XLSX;
+            case FORMAT_NDJSON:
+                return MEDIA_TYPE_GZIP;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown export format '%s'", format));
+        }
+    }
+
+    public static String getFileExtension(String format) {
+        return FORMAT_NDJSON.equals(format) ? "ndjson.gz" : format;
+    }
+
+    public abstract void write(Document document) throws IOException;
+
+    /**
+     * Completes the file and flushes it, the output stream is not closed.
+     */
+    public abstract void finish() throws IOException;
+
+    // the text of a cell, json for documents and lists
+    protected static String toText(Object value) {
+        if (value == null) {
+            return "";
+        } else if (value instanceof Map || value instanceof List) {
+            return Utils.toJsonLine(value);
+        }
+        return value.toString();
+    }
+
+    private static class Ndjson extends ExportWriter {
+        private final OutputStream outputStream;
+
+        Ndjson(OutputStream outputStream, List<String> columns) {
+            super(new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)), columns);
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void write(Document document) throws IOException {
+            writer.write(Utils.toJsonLine(document));
+            writer.write('\n');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.flush();
+            if (outputStream instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) outputStream).finish();
+            }
+        }
+    }
+
+    private static class Csv extends ExportWriter {
+
+        Csv(OutputStream outputStream, List<String> columns) throws IOException {
+            super(new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)), columns);
+            // the BOM makes excel read the file as UTF-8
+            writer.write('\uFEFF');
+            writeRow(columns);
+        }
+
+        @Override
+        public void write(Document document) throws IOException {
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                Object value = document.get(columns.get(i));
+                // the numbers are not text, a negative one keeps its sign
+                writer.write(escape(value instanceof Number ? toText(value) : neutralize(toText(value))));
+            }
+            writer.write("\r\n");
+        }
+
+        private void writeRow(List<String> values) throws IOException {
+            writer.write(String.join(",", values.stream().map(value -> escape(neutralize(value))).toArray(String[]::new)));
+            writer.write("\r\n");
+        }
+
+        // a text that starts like a formula is prefixed with ', the spreadsheets show it as text and do not run it
+        private static String neutralize(String text) {
+            if (!text.isEmpty() && "=+-@\t\r".indexOf(text.charAt(0)) >= 0) {
+                return "'" + text;
+            }
+            return text;
+        }
+
+        // RFC 4180
+        private static String escape(String text) {
+            if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+                return '"' + text.replace("\"", "\"\"") + '"';
+            }
+            return text;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.flush();
+        }
+    }
+
+    /**
+     * A minimal workbook with one sheet of inline strings, numbers and booleans, written row by row to the zip.
+     */
+    private static class Xlsx extends ExportWriter {
+        // excel does not show more characters in a cell
+        private static final int MAX_CELL_LENGTH = 32767;
+        private final ZipOutputStream zipOutputStream;
+
+        Xlsx(OutputStream outputStream, List<String> columns) throws IOException {
+            this(new ZipOutputStream(outputStream), columns);
+        }
+
+        private Xlsx(ZipOutputStream zipOutputStream, List<String> columns) throws IOException {
+            super(new BufferedWriter(new OutputStreamWriter(zipOutputStream, StandardCharsets.UTF_8)), columns);
+            this.zipOutputStream = zipOutputStream;
+            putEntry("[Content_Types].xml", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+                    + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+                    + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+                    + "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>"
+                    + "<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>"
+                    + "</Types>");
+            putEntry("_rels/.rels", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                    + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>"
+                    + "</Relationships>");
+            putEntry("xl/workbook.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">"
+                    + "<sheets><sheet name=\"data\" sheetId=\"1\" r:id=\"rId1\"/></sheets>"
+                    + "</workbook>");
+            putEntry("xl/_rels/workbook.xml.rels", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                    + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet1.xml\"/>"
+                    + "</Relationships>");
+            // the sheet is the last entry, it stays open while the rows are written
+            zipOutputStream.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>");
+            writer.write("<row>");
+            for (String column : columns) {
+                writeCell(column);
+            }
+            writer.write("</row>");
+        }
+
+        private void putEntry(String name, String content) throws IOException {
+            zipOutputStream.putNextEntry(new ZipEntry(name));
+            writer.write(content);
+            writer.flush();
+            zipOutputStream.closeEntry();
+        }
+
+        @Override
+        public void write(Document document) throws IOException {
+            writer.write("<row>");
+            for (String column : columns) {
+                writeCell(document.get(column));
+            }
+            writer.write("</row>");
+        }
+
+        private void writeCell(Object value) throws IOException {
+            if (value == null) {
+                writer.write("<c/>");
+            } else if (value instanceof Number && isFinite((Number) value)) {
+                writer.write("<c t=\"n\"><v>");
+                writer.write(value.toString());
+                writer.write("</v></c>");
+            } else if (value instanceof Boolean) {
+                writer.write("<c t=\"b\"><v>");
+                writer.write((Boolean) value ? "1" : "0");
+                writer.write("</v></c>");
+            } else {
+                String text = toText(value);
+                if (text.length() > MAX_CELL_LENGTH) {
+                    text = text.substring(0, MAX_CELL_LENGTH);
+                }
+                writer.write("<c t=\"inlineStr\"><is><t xml:space=\"preserve\">");
+                writer.write(escape(text));
+                writer.write("</t></is></c>");
+            }
+        }
+
+        // NaN and the infinities are not numbers in a sheet, they are written as text
+        private static boolean isFinite(Number number) {
+            if (number instanceof Decimal128) {
+                return !((Decimal128) number).isNaN() && !((Decimal128) number).isInfinite();
+            } else if (number instanceof Double || number instanceof Float) {
+                return Double.isFinite(number.doubleValue());
+            }
+            return true;
+        }
+
+        // escapes the markup and drops the characters that are not allowed in xml
+        private static String escape(String text) {
+            StringBuilder sb = new StringBuilder(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '<':
+                        sb.append("&lt;");
+                        break;
+                    case '>':
+                        sb.append("&gt;");
+                        break;
+                    case '&':
+                        sb.append("&amp;");
+                        break;
+                    case '"':
+                        sb.append("&quot;");
+                        break;
+                    default:
+                        if ((c >= 0x20 && c != 0xFFFE && c != 0xFFFF) || c == '\t' || c == '\n' || c == '\r') {
+                            sb.append(c);
+                        }
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.write("</sheetData></worksheet>");
+            writer.flush();
+            zipOutputStream.closeEntry();
+            zipOutputStream.finish();
+        }
+    }
+}
@@ -26,6 +26,10 @@ import com.k8scms.cms.Constants;
 import com.k8scms.cms.SecretProperties;
 import com.k8scms.cms.model.*;
 import com.k8scms.cms.mongo.MongoService;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import org.eclipse.microprofile.config.ConfigProvider;
+import org.bson.BsonRegularExpression;
 import org.bson.Document;
 import org.bson.types.Decimal128;
 import org.bson.types.ObjectId;
@@ -33,16 +37,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.HttpMethod;
-import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
+import java.nio.charset.CharsetEncoder;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class ModelUtils {
 
     private static final Logger log = LoggerFactory.getLogger(ModelUtils.class);
+    // max number of relation filters merged in one query
+    private static final int RELATION_BATCH_SIZE = 1000;
+    // max number of uploaded ids looked up in one query and the number of these queries running at the same time
+    private static final int UPLOAD_BATCH_SIZE = 1000;
+    private static final int UPLOAD_LOOKUP_CONCURRENCY = 4;
+    // the extended json keys that the json reader turns to bson types e.g. {"$oid": "..."}
+    private static final Set<String> EXTENDED_JSON_KEYS = Set.of(
+            "$oid", "$date", "$numberDecimal", "$numberLong", "$numberInt", "$numberDouble", "$binary", "$uuid",
+            "$regex", "$regularExpression", "$timestamp", "$symbol", "$code", "$dbPointer", "$minKey", "$maxKey",
+            "$undefined");
 
     enum VALIDATION_TYPE {
         ID,
@@ -66,28 +88,164 @@ public class ModelUtils {
     private ModelUtils() {
     }
 
+    private static final Pattern PATTERN_CRON = Pattern.compile(Constants.REGEX_CRON);
+    private static final Pattern PATTERN_EMAIL = Pattern.compile(Constants.REGEX_EMAIL);
+    private static final Pattern PATTERN_PHONE = Pattern.compile(Constants.REGEX_PHONE);
+
     public static List<Field> findIdFields(Model model) {
-        return model.getFields()
-                .stream()
-                .filter(Field::isId)
-                .collect(Collectors.toList());
+        return model.getCompiled().getIdFields();
     }
 
     private static Field findField(Model model, String name) {
-        return model.getFields()
-                .stream()
-                .filter(field -> name.equals(field.getName()))
-                .findAny()
-                .orElse(Field.DEFAULT);
+        return model.getCompiled().getField(name);
     }
 
     public static List<Document> validate(List<Document> documents, Model model) {
-        List<Map<String, Object>> ids = new ArrayList<>();
-        List<Field> idFields = findIdFields(model);
-        documents.forEach(document -> validate(document, model, idFields, ids));
+        return validate(documents, model, null);
+    }
+
+    // only the requested fields are validated, null for all
+    public static List<Document> validate(List<Document> documents, Model model, Collection<String> fields) {
+        CompiledModel compiled = model.getCompiled();
+        if (documents.size() >= ParallelValidation.THRESHOLD) {
+            return validateParallel(documents, compiled, fields);
+        }
+        Set<Object> ids = new HashSet<>(documents.size() * 2);
+        documents.forEach(document -> validate(document, compiled, ids, fields));
+        return documents;
+    }
+
+    // the pool is created on the first big validation
+    private static class ParallelValidation {
+        static final int THRESHOLD = ConfigProvider.getConfig().getValue("cms.validation-parallel-threshold", Integer.class);
+        static final ForkJoinPool POOL = new ForkJoinPool(Optional.of(ConfigProvider.getConfig().getValue("cms.validation-parallelism", Integer.class))
+                .filter(parallelism -> parallelism > 0)
+                .orElse(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Gives the same results as the sequential validation. The duplicate ids are found first in a concurrent pass
+     * that keeps the first index of every id, so the same (later) documents are reported. Next the documents are
+     * validated independently on the bounded pool.
+     */
+    private static List<Document> validateParallel(List<Document> documents, CompiledModel compiled, Collection<String> fields) {
+        List<Field> idFields = compiled.getIdFields();
+        boolean checkIds = idFields.stream().allMatch(field -> isRequested(fields, field.getName()));
+        boolean[] duplicates = new boolean[documents.size()];
+        try {
+            ParallelValidation.POOL.submit(() -> {
+                if (checkIds) {
+                    Map<Object, Integer> firstIndexes = new ConcurrentHashMap<>(documents.size() * 2);
+                    IntStream.range(0, documents.size()).parallel()
+                            .forEach(i -> firstIndexes.merge(toConcurrentKey(idKey(documents.get(i), idFields)), i, Math::min));
+                    IntStream.range(0, documents.size()).parallel()
+                            .forEach(i -> duplicates[i] = firstIndexes.get(toConcurrentKey(idKey(documents.get(i), idFields))) != i);
+                }
+                IntStream.range(0, documents.size()).parallel()
+                        .forEach(i -> validate(documents.get(i), compiled, duplicates[i], fields));
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Validation was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
         return documents;
     }
 
+    // concurrent maps do not accept null keys
+    private static final Object NULL_ID = new Object();
+
+    private static Object toConcurrentKey(Object idKey) {
+        return idKey == null ? NULL_ID : idKey;
+    }
+
+    public static UnaryOperator<Document> validator(Model model) {
+        return validator(model, null);
+    }
+
+    // validates one document at a time, keeping the seen ids between calls, e.g. for streamed documents
+    public static UnaryOperator<Document> validator(Model model, Collection<String> fields) {
+        Set<Object> ids = new HashSet<>();
+        CompiledModel compiled = model.getCompiled();
+        return document -> validate(document, compiled, ids, fields);
+    }
+
+    // the value of a single id, the list of the values of a composite id, both hashable and smaller than a map
+    private static Object idKey(Document document, List<Field> idFields) {
+        if (idFields.size() == 1) {
+            return document.get(idFields.get(0).getName());
+        }
+        Object[] values = new Object[idFields.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = document.get(idFields.get(i).getName());
+        }
+        return Arrays.asList(values);
+    }
+
+    private static boolean isRequested(Collection<String> fields, String name) {
+        return fields == null || fields.contains(name);
+    }
+
+    /**
+     * @return the projection of the stored fields that are needed for the requested fields, the fields that the
+     * requested relations (also through virtual fields) use in their filters and the sort field
+     */
+    public static Document getProjection(Collection<String> fields, Model model, String sort) {
+        CompiledModel compiled = model.getCompiled();
+        Document projection = new Document("_id", 1);
+        for (String name : fields) {
+            Field field = compiled.getField(name);
+            if (field.getRelation() == null && field.getVirtual() == null) {
+                projection.put(name, 1);
+            }
+        }
+        for (String name : getRelationNames(fields, compiled)) {
+            String filter = compiled.getField(name).getRelation().getFilter();
+            for (Field c : model.getFields()) {
+                if (c.getRelation() == null && filter.contains("{" + c.getName() + "}")) {
+                    projection.put(c.getName(), 1);
+                }
+            }
+        }
+        if (sort != null) {
+            projection.put(sort, 1);
+        }
+        return projection;
+    }
+
+    // the relations to resolve for the requested fields, directly or through virtual fields
+    private static Set<String> getRelationNames(Collection<String> fields, CompiledModel compiled) {
+        Set<String> names = new HashSet<>();
+        for (Field field : compiled.getRelationFields()) {
+            if (isRequested(fields, field.getName())) {
+                names.add(field.getName());
+            }
+        }
+        for (Field field : compiled.getVirtualFields()) {
+            if (isRequested(fields, field.getName())) {
+                String name = field.getVirtual().split("\\.")[0];
+                if (compiled.getField(name).getRelation() != null) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    // removes the fields that were read only for the relations or the sort, the _id and _meta are kept
+    public static Document removeUnrequestedFields(Document document, Collection<String> fields) {
+        if (fields != null) {
+            document.keySet().removeIf(key -> !"_id".equals(key)
+                    && !"_meta".equals(key)
+                    && fields.stream().noneMatch(field -> field.equals(key) || field.startsWith(key + ".")));
+        }
+        return document;
+    }
+
     private static Map<String, Object> filterDocument(Document document, List<Field> fields) {
         Map<String, Object> result = new HashMap<>();
         for (Field field : fields) {
@@ -96,11 +254,19 @@ public class ModelUtils {
         return result;
     }
 
-    private static Document validate(Document document, Model model, List<Field> idFields, List<Map<String, Object>> ids) {
+    private static Document validate(Document document, CompiledModel compiled, Set<Object> ids, Collection<String> fields) {
+        List<Field> idFields = compiled.getIdFields();
+        // the ids are not checked when they are not all read
+        boolean checkIds = idFields.stream().allMatch(field -> isRequested(fields, field.getName()));
+        // add returns false for the ids that are already seen
+        return validate(document, compiled, checkIds && !ids.add(idKey(document, idFields)), fields);
+    }
+
+    private static Document validate(Document document, CompiledModel compiled, boolean duplicate, Collection<String> fields) {
+        List<Field> idFields = compiled.getIdFields();
         Meta meta = (Meta) document.getOrDefault("_meta", new Meta());
-        Map<String, Object> documentIds = filterDocument(document, idFields);
-        // Map already implements equals
-        if (ids.contains(documentIds)) {
+        if (duplicate) {
+            Map<String, Object> documentIds = filterDocument(document, idFields);
             if (idFields.size() > 1) {
                 String key = String.join(",", documentIds.keySet());
                 addMetaValidationError(meta, key, VALIDATION_TYPE.ID, String.format("composite id '%s' already exists in collection's ids",
@@ -110,30 +276,32 @@ public class ModelUtils {
                     addMetaValidationError(meta, entry.getKey(), VALIDATION_TYPE.ID, String.format("id '%s' already exists in collection's ids", entry.getValue()));
                 }
             }
-        } else {
-            ids.add(documentIds);
         }
         for (Map.Entry<String, Object> entry : document.entrySet()) {
-            Field field = ModelUtils.findField(model, entry.getKey());
+            if (!isRequested(fields, entry.getKey())) {
+                continue;
+            }
+            Field field = compiled.getField(entry.getKey());
             // check regex
             if (field.getRegex() != null) {
                 // use it also check for empty strings and nulls with the '\z' option
                 Object value = document.get(field.getName());
                 String valueS = value == null ? "" : value.toString();
-                if (!valueS.matches(field.getRegex())) {
+                // an invalid regex is not compiled, compiling it again reports the error
+                Pattern regex = Optional.ofNullable(compiled.getRegex(field.getName())).orElseGet(() -> Pattern.compile(field.getRegex()));
+                if (!regex.matcher(valueS).matches()) {
                     addMetaValidationError(meta, field.getName(), VALIDATION_TYPE.VALUE_REGEX, String.format("'%s' does not match '%s'", valueS, field.getRegex()));
                 }
             }
             if (entry.getValue() != null) {
                 // check charset
                 if (field.getCharset() != null) {
-                    try {
-                        // replace characters that are not included in the charsets
-                        if (!Utils.isCharset(entry.getValue().toString().replace("€", "").replace("΄", "").replace("’", ""), field.getCharset())) {
-                            addMetaValidationError(meta, entry.getKey(), VALIDATION_TYPE.VALUE_CHARSET, String.format("'%s' not in charset %s", entry.getValue(), field.getCharset()));
-                        }
-                    } catch (UnsupportedEncodingException e) {
+                    CharsetEncoder encoder = compiled.getEncoder(field.getName());
+                    if (encoder == null) {
                         addMetaValidationError(meta, entry.getKey(), VALIDATION_TYPE.VALUE_CHARSET, String.format("charset %s is not a known one", field.getCharset()));
+                    } else if (!encoder.canEncode(entry.getValue().toString().replace("€", "").replace("΄", "").replace("’", ""))) {
+                        // replace characters that are not included in the charsets
+                        addMetaValidationError(meta, entry.getKey(), VALIDATION_TYPE.VALUE_CHARSET, String.format("'%s' not in charset %s", entry.getValue(), field.getCharset()));
                     }
                 }
                 // use the entry.key in case the field is not included in the model, otherwise the rest service returns list instead of map!!!
@@ -141,10 +309,9 @@ public class ModelUtils {
             }
         }
         // not for relations and virtual fields. Relations error are reported in _meta.RelationErrors
-        model.getFields().stream()
-                .filter(field -> field.getRequired() && field.getRelation() == null && field.getVirtual() == null)
+        compiled.getRequiredFields()
                 .forEach(field -> {
-                    if (document.get(field.getName()) == null) {
+                    if (isRequested(fields, field.getName()) && document.get(field.getName()) == null) {
                         addMetaValidationError(meta, field.getName(), VALIDATION_TYPE.REQUIRED, "required value");
                     }
                 });
@@ -206,18 +373,18 @@ public class ModelUtils {
                 if (!(value instanceof String)) {
                     addMetaValidationError(meta, fieldName, VALIDATION_TYPE.TYPE_NOT_CRON, String.format("'%s' is not a cron expression", value));
                 } else {
-                    if (!((String) value).matches(Constants.REGEX_CRON)) {
+                    if (!PATTERN_CRON.matcher((String) value).matches()) {
                         addMetaValidationError(meta, fieldName, VALIDATION_TYPE.TYPE_NOT_CRON, String.format("'%s' is not a cron expression", value));
                     }
                 }
                 break;
             case Field.TYPE_EMAIL:
-                if (!((String) value).matches(Constants.REGEX_EMAIL)) {
+                if (!PATTERN_EMAIL.matcher((String) value).matches()) {
                     addMetaValidationError(meta, fieldName, VALIDATION_TYPE.TYPE_NOT_EMAIL, String.format("'%s' is not an email", value));
                 }
                 break;
             case Field.TYPE_PHONE:
-                if (!((String) value).matches(Constants.REGEX_PHONE)) {
+                if (!PATTERN_PHONE.matcher((String) value).matches()) {
                     addMetaValidationError(meta, fieldName, VALIDATION_TYPE.TYPE_NOT_PHONE, String.format("'%s' is not a phone", value));
                 }
                 break;
@@ -244,11 +411,90 @@ public class ModelUtils {
 
     public static List<Document> findUploadResults(MongoService mongoService, List<Document> documents, Model model, SecretProperties secretProperties) {
         List<Field> idFields = findIdFields(model);
-        documents.forEach(document -> findUploadResults(mongoService, document, model, idFields, secretProperties));
+        List<Document> olds = idFields.isEmpty()
+                ? Collections.nCopies(documents.size(), null)
+                : findOldDocuments(mongoService, documents, model, idFields);
+        // documents with the same ids share the old one, decrypt it once
+        Set<Document> decrypted = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < documents.size(); i++) {
+            Document old = olds.get(i);
+            if (old != null && decrypted.add(old)) {
+                // decrypt secret2
+                decryptSecrets(old, model, secretProperties);
+            }
+            findUploadResults(documents.get(i), old, model, idFields);
+        }
         return documents;
     }
 
-    private static Document findUploadResults(MongoService mongoService, Document document, Model model, List<Field> idFields, SecretProperties secretProperties) {
+    /**
+     * @return the stored version of each document (null for the new ones). The ids are looked up in chunked '$in'
+     * (or '$or' for composite ids) queries that run concurrently and are joined with the documents in memory.
+     */
+    private static List<Document> findOldDocuments(MongoService mongoService, List<Document> documents, Model model, List<Field> idFields) {
+        List<String> idFieldNames = idFields.stream().map(Field::getName).collect(Collectors.toList());
+        List<Document> olds = new ArrayList<>(Collections.nCopies(documents.size(), null));
+        // equality key of the ids -> the ids and the indexes of the documents that have them
+        Map<List<Object>, Map<String, Object>> idsByKey = new LinkedHashMap<>();
+        Map<List<Object>, List<Integer>> indexesByKey = new HashMap<>();
+        for (int i = 0; i < documents.size(); i++) {
+            Map<String, Object> documentIds = filterDocument(documents.get(i), idFields);
+            if (documentIds.values().stream().anyMatch(value -> value instanceof Map || value instanceof List)) {
+                // mongo matches documents and arrays differently, query them on their own
+                GetOptions getOptions = new GetOptions();
+                getOptions.setLimit(1);
+                olds.set(i, mongoService.get(model.getCluster(), model.getDatabase(), model.getCollection(), new Document(documentIds), getOptions)
+                        .collectItems().first().await().indefinitely());
+            } else {
+                List<Object> key = idFieldNames.stream().map(name -> Utils.equalityKey(documentIds.get(name))).collect(Collectors.toList());
+                idsByKey.putIfAbsent(key, documentIds);
+                indexesByKey.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+            }
+        }
+        List<List<Object>> keys = new ArrayList<>(idsByKey.keySet());
+        List<List<List<Object>>> chunks = new ArrayList<>();
+        for (int from = 0; from < keys.size(); from += UPLOAD_BATCH_SIZE) {
+            chunks.add(keys.subList(from, Math.min(from + UPLOAD_BATCH_SIZE, keys.size())));
+        }
+        List<Map.Entry<List<List<Object>>, List<Document>>> results = Multi.createFrom().iterable(chunks)
+                .onItem().transformToUni(chunk -> {
+                    GetOptions getOptions = new GetOptions();
+                    getOptions.setNoLimit(true);
+                    return mongoService.get(model.getCluster(), model.getDatabase(), model.getCollection(), toIdsFilter(idFieldNames, chunk, idsByKey), getOptions)
+                            .collectItems().asList()
+                            .map(found -> (Map.Entry<List<List<Object>>, List<Document>>) new AbstractMap.SimpleEntry<>(chunk, found));
+                })
+                .merge(UPLOAD_LOOKUP_CONCURRENCY)
+                .collectItems().asList()
+                .await().indefinitely();
+        for (Map.Entry<List<List<Object>>, List<Document>> result : results) {
+            Set<List<Object>> chunkKeys = new HashSet<>(result.getKey());
+            for (Document old : result.getValue()) {
+                for (List<Object> key : equalityKeys(old, idFieldNames)) {
+                    if (chunkKeys.contains(key)) {
+                        // like the single lookups, the first one that mongo returns
+                        for (Integer i : indexesByKey.get(key)) {
+                            if (olds.get(i) == null) {
+                                olds.set(i, old);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return olds;
+    }
+
+    private static Document toIdsFilter(List<String> idFieldNames, List<List<Object>> keys, Map<List<Object>, Map<String, Object>> idsByKey) {
+        if (idFieldNames.size() == 1) {
+            String name = idFieldNames.get(0);
+            return new Document(name, new Document("$in", keys.stream().map(key -> idsByKey.get(key).get(name)).collect(Collectors.toList())));
+        } else {
+            return new Document("$or", keys.stream().map(key -> new Document(idsByKey.get(key))).collect(Collectors.toList()));
+        }
+    }
+
+    private static Document findUploadResults(Document document, Document old, Model model, List<Field> idFields) {
         Meta meta = (Meta) document.get("_meta");
         if (meta == null) {
             meta = new Meta();
@@ -257,12 +503,6 @@ public class ModelUtils {
         if (idFields.isEmpty()) {
             // do nothing
         } else {
-            Map<String, Object> documentIds = filterDocument(document, idFields);
-            GetOptions getOptions = new GetOptions();
-            getOptions.setLimit(1);
-            Document old = mongoService.get(model.getCluster(), model.getDatabase(), model.getCollection(), new Document(documentIds), getOptions)
-                    .collectItems().first().await().indefinitely();
-            // decrypt secret2
             Set<String> allKeys = new HashSet(document.keySet());
             allKeys.remove("_meta");
             if (old == null) {
@@ -271,7 +511,6 @@ public class ModelUtils {
                     addInsertUploadResult(meta, key, newValue == null ? "null" : newValue.getClass().getSimpleName() + ": '" + newValue + "'");
                 }
             } else {
-                decryptSecrets(old, model, secretProperties);
                 allKeys.addAll(old.keySet());
                 for (String key : allKeys) {
                     // old contains the field
@@ -324,68 +563,110 @@ public class ModelUtils {
         fieldErrors.add(String.format("%s: %s", validationType, error));
     }
 
-    private static String toQuery(Object object) {
-        if (object == null) {
-            return "null";
-        } else if (object instanceof List) {
-            return ((List<Object>) object).stream()
-                    .map(ModelUtils::toQuery)
-                    .collect(Collectors.joining(","));
-        } else if (object instanceof ObjectId) {
-            // need to escape $ for the String.replaceAll method
-            return String.format("{'\\$oid': '%s'}", ((ObjectId) object).toHexString());
-        } else if (object instanceof Date) {
-            // need to escape $ for the String.replaceAll method
-            return String.format("{'\\$date': '%s'}", ((Date) object).toInstant().toString());
-        } else if (object instanceof Decimal128) {
-            return ((Decimal128) object).toString();
-        }
-        return String.format("'%s'", object.toString());
+    public static Document addRelations(Document document, Model model, MongoService mongoService) {
+        addRelations(Collections.singletonList(document), model, mongoService);
+        return document;
     }
 
-    public static Document addRelations(Document document, Model model, MongoService mongoService) {
-        Meta meta = (Meta) document.get("_meta");
-        if (meta == null) {
-            meta = new Meta();
+    /**
+     * Resolves the relations of a page of documents. Documents are grouped by the resolved relation filter, so each
+     * distinct filter is queried once. Equality and '$in' filters on the same fields are merged in batched '$in'/'$or'
+     * queries and their results are fanned back out to the documents in memory. The queries of all the relation fields
+     * run concurrently, at most cms.relation-concurrency at a time per cluster, each one failing after
+     * cms.relation-timeout seconds.
+     */
+    public static List<Document> addRelations(List<Document> documents, Model model, MongoService mongoService) {
+        return addRelations(documents, model, null, mongoService);
+    }
+
+    // only the relations and virtual fields of the requested fields are resolved, null for all
+    public static List<Document> addRelations(List<Document> documents, Model model, Collection<String> fields, MongoService mongoService) {
+        return addRelationsAsync(documents, model, fields, mongoService)
+                .await()
+                .indefinitely();
+    }
+
+    // the same without blocking, the documents are emitted when all their relations are resolved
+    public static Uni<List<Document>> addRelationsAsync(List<Document> documents, Model model, Collection<String> fields, MongoService mongoService) {
+        CompiledModel compiled = model.getCompiled();
+        if (!compiled.hasRelations()) {
+            return Uni.createFrom().item(documents);
         }
+        Set<String> relationNames = getRelationNames(fields, compiled);
+        List<Field> relationFields = compiled.getRelationFields().stream()
+                .filter(field -> relationNames.contains(field.getName()))
+                .collect(Collectors.toList());
+        // cluster -> queries of the relations on it
+        Map<String, List<Supplier<Uni<List<Document>>>>> queries = new HashMap<>();
+        List<Map<Document, List<Integer>>> filtersList = new ArrayList<>();
+        List<Map<Document, List<Document>>> relationsByFilterList = new ArrayList<>();
+        for (Field field : relationFields) {
+            RelationTemplate template = compiled.getRelationTemplate(field.getName());
+            // resolved filter -> indexes of the documents that use it
+            Map<Document, List<Integer>> filters = new LinkedHashMap<>();
+            Map<Document, String> filterTexts = new HashMap<>();
+            for (int i = 0; i < documents.size(); i++) {
+                Document document = documents.get(i);
+                Document filter = template.bind(document);
+                if (template.hasSlots()) {
+                    addRelationFilter(getMeta(document), field.getName(), filterTexts.computeIfAbsent(filter, Document::toJson));
+                }
+                filters.computeIfAbsent(filter, k -> new ArrayList<>()).add(i);
+            }
+            filtersList.add(filters);
+            relationsByFilterList.add(findRelations(field.getRelation(), filters.keySet(), mongoService, queries));
+        }
+        return runRelationQueries(queries).map(ignored -> {
+            addRelations(documents, compiled, fields, relationFields, filtersList, relationsByFilterList);
+            return documents;
+        });
+    }
 
-        Map<String, List<Document>> relationsMap = new HashMap<>();
-        for (Field field : model.getFields()) {
-            if (field.getRelation() != null) {
-                String cluster = field.getRelation().getCluster();
-                String database = field.getRelation().getDatabase();
-                String collection = field.getRelation().getCollection();
-                String filter = field.getRelation().getFilter();
-                for (Field c : model.getFields()) {
-                    if (c.getRelation() == null) {
-                        if (filter.contains("{" + c.getName() + "}")) {
-                            filter = filter.replaceAll("\\{" + c.getName() + "\\}", toQuery(document.get(c.getName())));
-                            addRelationFilter(meta, field.getName(), filter);
+    // fans the related documents out to the documents that use their filters
+    private static void addRelations(List<Document> documents, CompiledModel compiled, Collection<String> fields, List<Field> relationFields,
+                                     List<Map<Document, List<Integer>>> filtersList, List<Map<Document, List<Document>>> relationsByFilterList) {
+        List<Map<String, List<Document>>> relationsMaps = new ArrayList<>();
+        documents.forEach(document -> relationsMaps.add(new HashMap<>()));
+        for (int f = 0; f < relationFields.size(); f++) {
+            Field field = relationFields.get(f);
+            // a relation that is resolved only for a virtual field is not added to the document
+            boolean requested = isRequested(fields, field.getName());
+            Map<Document, List<Document>> relationsByFilter = relationsByFilterList.get(f);
+            filtersList.get(f).forEach((filter, indexes) -> {
+                List<Document> relations = relationsByFilter.get(filter);
+                for (Integer i : indexes) {
+                    Document document = documents.get(i);
+                    if (!relations.isEmpty()) {
+                        relationsMaps.get(i).put(field.getName(), relations);
+                        if (!field.getHidden() && requested) {
+                            document.put(
+                                    field.getName(),
+                                    relations
+                            );
                         }
                     }
-                }
-                List<Document> relations = mongoService.get(cluster, database, collection, Document.parse(filter))
-                        .collectItems()
-                        .asList()
-                        .await()
-                        .indefinitely();
-                if (!relations.isEmpty()) {
-                    relationsMap.put(field.getName(), relations);
-                    if (!field.getHidden()) {
-                        document.put(
-                                field.getName(),
-                                relations
-                        );
+                    if (field.getRequired() && requested && relations.isEmpty()) {
+                        addMetaRelationError(getMeta(document), field.getName(), "relation required");
                     }
                 }
-                if (field.getRequired() && relations.isEmpty()) {
-                    addMetaRelationError(meta, field.getName(), "relation required");
-                }
-            }
+            });
+        }
+        for (int i = 0; i < documents.size(); i++) {
+            addVirtualFields(documents.get(i), compiled, fields, relationsMaps.get(i));
+        }
+    }
+
+    private static Meta getMeta(Document document) {
+        Meta meta = (Meta) document.get("_meta");
+        if (meta == null) {
+            meta = new Meta();
         }
-        // add all the virtual fields
-        model.getFields().stream()
-                .filter(field -> field.getVirtual() != null)
+        return meta;
+    }
+
+    private static void addVirtualFields(Document document, CompiledModel compiled, Collection<String> fields, Map<String, List<Document>> relationsMap) {
+        compiled.getVirtualFields().stream()
+                .filter(field -> isRequested(fields, field.getName()))
                 .forEach(field -> {
                     String[] tokens = field.getVirtual().split("\\.");
                     List values = ((List) relationsMap.get(tokens[0]));
@@ -401,7 +682,171 @@ public class ModelUtils {
                         }
                     }
                 });
-        return document;
+    }
+
+    private static class RelationFanOut {
+        static final String DEFAULT_CLUSTER = ConfigProvider.getConfig().getValue("cms.cluster", String.class);
+        static final int CONCURRENCY = ConfigProvider.getConfig().getValue("cms.relation-concurrency", Integer.class);
+        static final Duration TIMEOUT = Duration.ofSeconds(ConfigProvider.getConfig().getValue("cms.relation-timeout", Long.class));
+    }
+
+    // the clusters are queried concurrently, the queries of each cluster at most RelationFanOut.CONCURRENCY at a time
+    private static Uni<Integer> runRelationQueries(Map<String, List<Supplier<Uni<List<Document>>>>> queries) {
+        if (queries.isEmpty()) {
+            return Uni.createFrom().item(0);
+        }
+        List<Uni<List<List<Document>>>> clusters = queries.values().stream()
+                .map(clusterQueries -> Multi.createFrom().iterable(clusterQueries)
+                        .onItem().transformToUni(query -> query.get()
+                                .ifNoItem().after(RelationFanOut.TIMEOUT).fail())
+                        .merge(RelationFanOut.CONCURRENCY)
+                        .collectItems()
+                        .asList())
+                .collect(Collectors.toList());
+        return Uni.combine().all().unis(clusters)
+                .combinedWith(results -> results.size());
+    }
+
+    /**
+     * Adds the queries of the filters that are not cached to the queries by cluster.
+     *
+     * @return resolved filter -> related documents, in the order mongo returns them, filled when the queries are run
+     */
+    private static Map<Document, List<Document>> findRelations(Relation relation, Collection<Document> filters, MongoService mongoService, Map<String, List<Supplier<Uni<List<Document>>>>> queries) {
+        Map<Document, List<Document>> result = new ConcurrentHashMap<>();
+        long generation = mongoService.getRelationCacheGeneration();
+        List<Supplier<Uni<List<Document>>>> clusterQueries = queries.computeIfAbsent(
+                Optional.ofNullable(relation.getCluster()).orElse(RelationFanOut.DEFAULT_CLUSTER),
+                k -> new ArrayList<>());
+        // fields of the filter (e.g. [name]) -> batchable filters on these fields
+        Map<List<String>, Map<Document, Map<String, Set<Object>>>> batches = new LinkedHashMap<>();
+        for (Document filter : filters) {
+            List<Document> cached = mongoService.getCachedRelations(relation, filter);
+            if (cached != null) {
+                result.put(filter, cached);
+                continue;
+            }
+            Map<String, Set<Object>> conditions = toEqualityConditions(filter);
+            if (conditions == null) {
+                // not batchable, query it on its own
+                clusterQueries.add(() -> mongoService.get(relation.getCluster(), relation.getDatabase(), relation.getCollection(), filter)
+                        .collectItems()
+                        .asList()
+                        .invoke(relations -> {
+                            result.put(filter, relations);
+                            mongoService.putCachedRelations(relation, filter, relations, generation);
+                        }));
+            } else {
+                batches.computeIfAbsent(new ArrayList<>(conditions.keySet()), k -> new LinkedHashMap<>()).put(filter, conditions);
+            }
+        }
+        batches.forEach((fieldNames, batch) -> {
+            List<Document> batchFilters = new ArrayList<>(batch.keySet());
+            for (int from = 0; from < batchFilters.size(); from += RELATION_BATCH_SIZE) {
+                List<Document> chunk = batchFilters.subList(from, Math.min(from + RELATION_BATCH_SIZE, batchFilters.size()));
+                GetOptions getOptions = new GetOptions();
+                getOptions.setNoLimit(true);
+                clusterQueries.add(() -> mongoService.get(relation.getCluster(), relation.getDatabase(), relation.getCollection(), toBatchFilter(fieldNames, chunk, batch), getOptions)
+                        .collectItems()
+                        .asList()
+                        .invoke(relations -> {
+                            // equality key of the related document -> positions in relations
+                            Map<List<Object>, List<Integer>> index = new HashMap<>();
+                            for (int i = 0; i < relations.size(); i++) {
+                                for (List<Object> key : equalityKeys(relations.get(i), fieldNames)) {
+                                    index.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+                                }
+                            }
+                            for (Document filter : chunk) {
+                                // keep mongo's order and add each related document once
+                                SortedSet<Integer> positions = new TreeSet<>();
+                                for (List<Object> key : conditionKeys(batch.get(filter), fieldNames)) {
+                                    positions.addAll(index.getOrDefault(key, Collections.emptyList()));
+                                }
+                                List<Document> filterRelations = positions.stream().map(relations::get).collect(Collectors.toList());
+                                result.put(filter, filterRelations);
+                                mongoService.putCachedRelations(relation, filter, filterRelations, generation);
+                            }
+                        }));
+            }
+        });
+        return result;
+    }
+
+    // {a: 1, b: {$in: [2, 3]}} -> {a: [1], b: [2, 3]}, null if the filter uses anything else
+    public static Map<String, Set<Object>> toEqualityConditions(Document filter) {
+        if (filter.isEmpty()) {
+            return null;
+        }
+        Map<String, Set<Object>> conditions = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : filter.entrySet()) {
+            if (entry.getKey().startsWith("$") || entry.getKey().contains(".")) {
+                return null;
+            }
+            Object value = entry.getValue();
+            List<Object> values;
+            if (value instanceof Document) {
+                Document operator = (Document) value;
+                if (operator.size() == 1 && operator.get("$in") instanceof List) {
+                    values = (List<Object>) operator.get("$in");
+                } else {
+                    return null;
+                }
+            } else {
+                values = Collections.singletonList(value);
+            }
+            Set<Object> keys = new HashSet<>();
+            for (Object v : values) {
+                if (v instanceof Map || v instanceof List || v instanceof Pattern || v instanceof BsonRegularExpression) {
+                    return null;
+                }
+                keys.add(v);
+            }
+            conditions.put(entry.getKey(), keys);
+        }
+        return conditions;
+    }
+
+    private static Document toBatchFilter(List<String> fieldNames, List<Document> filters, Map<Document, Map<String, Set<Object>>> conditions) {
+        if (fieldNames.size() == 1) {
+            Set<Object> values = new LinkedHashSet<>();
+            filters.forEach(filter -> values.addAll(conditions.get(filter).get(fieldNames.get(0))));
+            return new Document(fieldNames.get(0), new Document("$in", new ArrayList<>(values)));
+        } else {
+            return new Document("$or", filters);
+        }
+    }
+
+    // all the combinations of the accepted values
+    private static List<List<Object>> conditionKeys(Map<String, Set<Object>> conditions, List<String> fieldNames) {
+        List<List<Object>> keys = Collections.singletonList(Collections.emptyList());
+        for (String fieldName : fieldNames) {
+            keys = combine(keys, conditions.get(fieldName));
+        }
+        return keys;
+    }
+
+    // the keys a related document is found with, mongo also matches the elements of arrays and null for missing fields
+    private static List<List<Object>> equalityKeys(Document related, List<String> fieldNames) {
+        List<List<Object>> keys = Collections.singletonList(Collections.emptyList());
+        for (String fieldName : fieldNames) {
+            Object value = related.get(fieldName);
+            Collection<Object> values = value instanceof List ? (List<Object>) value : Collections.singletonList(value);
+            keys = combine(keys, values);
+        }
+        return keys;
+    }
+
+    private static List<List<Object>> combine(List<List<Object>> keys, Collection<Object> values) {
+        List<List<Object>> result = new ArrayList<>();
+        for (List<Object> key : keys) {
+            for (Object value : values) {
+                List<Object> newKey = new ArrayList<>(key);
+                newKey.add(Utils.equalityKey(value));
+                result.add(newKey);
+            }
+        }
+        return result;
     }
 
     private static void addRelationFilter(Meta meta, String fieldName, String filter) {
@@ -447,6 +892,9 @@ public class ModelUtils {
     }
 
     public static Document decryptSecrets(Document document, Model model, SecretProperties secretProperties) {
+        if (!model.getCompiled().hasSecrets()) {
+            return document;
+        }
         for (Map.Entry<String, Object> entry : document.entrySet()) {
             Field field = ModelUtils.findField(model, entry.getKey());
             entry.setValue(decryptSecrets(field, entry.getValue(), secretProperties));
@@ -461,19 +909,45 @@ public class ModelUtils {
                     return "********";
                 case Field.ENCRYPTION_SECRET2:
                     if (object != null) {
-                        return fromWire(field.getType(), field.getArrayType(), Utils.decrypt2(object.toString(), secretProperties.getSecretEncryptionKey()));
+                        return fromWire(field.getType(), field.getArrayType(), SecretCipher.decrypt(object.toString(), secretProperties.getSecretEncryptionKey()));
                     }
             }
         }
         return object;
     }
 
+    /**
+     * Encrypts the secrets of the documents in place. The secret1 fields are hashed with bcrypt on the
+     * {@link CryptoExecutor}, one task per document and at most as many tasks of an upload as the executor's threads
+     * at a time, so the hashes of an upload run in parallel and the logins are queued between them. The Uni fails
+     * with a TooManyRequestsException when the executor is saturated.
+     */
+    public static Uni<List<Document>> encryptSecretsAsync(List<Document> documents, Model model, SecretProperties secretProperties) {
+        boolean hasSecret1 = model.getCompiled().getSecretFields().stream()
+                .anyMatch(field -> Field.ENCRYPTION_SECRET1.equals(field.getEncryption()));
+        if (!hasSecret1) {
+            return Uni.createFrom().item(() -> encryptSecrets(documents, model, secretProperties));
+        }
+        return Multi.createFrom().iterable(documents)
+                .onItem().transformToUni(document -> CryptoExecutor.submit(() -> {
+                    encryptSecrets(document, model, secretProperties);
+                    return document;
+                }))
+                .merge(CryptoExecutor.getPoolSize())
+                .collectItems().asList()
+                // in the order of the upload
+                .map(encrypted -> documents);
+    }
+
     public static List<Document> encryptSecrets(List<Document> documents, Model model, SecretProperties secretProperties) {
         documents.forEach(document -> encryptSecrets(document, model, secretProperties));
         return documents;
     }
 
     public static void encryptSecrets(Document document, Model model, SecretProperties secretProperties) {
+        if (!model.getCompiled().hasSecrets()) {
+            return;
+        }
         for (Map.Entry<String, Object> entry : document.entrySet()) {
             Field field = ModelUtils.findField(model, entry.getKey());
             entry.setValue(getEncryptedSecret(field, entry.getValue(), secretProperties));
@@ -488,7 +962,9 @@ public class ModelUtils {
                     result = Utils.encrypt1(value.toString(), secretProperties.getSecretEncryptionKey());
                     break;
                 case Field.ENCRYPTION_SECRET2:
-                    result = Utils.encrypt2(value.toString(), secretProperties.getSecretEncryptionKey());
+                    result = secretProperties.getSecret2V2()
+                            ? SecretCipher.encrypt(value.toString(), secretProperties.getSecretEncryptionKey())
+                            : Utils.encrypt2(value.toString(), secretProperties.getSecretEncryptionKey());
                     break;
             }
         }
@@ -590,7 +1066,7 @@ public class ModelUtils {
     }
 
     public static Document getNormalizedDocument(Document document, Model model) {
-        Document normal = (Document) Document.parse("{'k' : " + document.toJson() + "}").get("k");
+        Document normal = normalizeMap(document);
         // fix numbers and decimals according to model
         normal.entrySet().forEach(entry -> {
             Field field = findField(model, entry.getKey());
@@ -617,4 +1093,30 @@ public class ModelUtils {
         });
         return normal;
     }
+
+    // gives the same values as parsing the json of the document (numbers as Decimal128, maps as Documents) without
+    // serializing and parsing the whole document again
+    private static Document normalizeMap(Map<String, Object> map) {
+        Document normal = new Document();
+        map.forEach((key, value) -> normal.put(key, normalizeValue(value)));
+        return normal;
+    }
+
+    private static Object normalizeValue(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            if (!map.isEmpty() && EXTENDED_JSON_KEYS.contains(map.keySet().iterator().next())) {
+                // small wrapper, let the json reader create the bson type
+                return Document.parse("{'k' : " + new Document(map).toJson() + "}").get("k");
+            }
+            return normalizeMap(map);
+        } else if (value instanceof List) {
+            List<Object> list = new ArrayList<>(((List<?>) value).size());
+            ((List<?>) value).forEach(item -> list.add(normalizeValue(item)));
+            return list;
+        } else if (value instanceof BigDecimal) {
+            return new Decimal128((BigDecimal) value);
+        }
+        return value;
+    }
 }
@@ -0,0 +1,127 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.utils;
+
+import com.k8scms.cms.Constants;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The secret2 values, v2:base64(iv, ciphertext, tag) encrypted with AES-GCM. The key is derived (PBKDF2) once per
+ * secret encryption key and reused, unlike the Jasypt values that derive it for every value. The Jasypt values are
+ * still decrypted, until SecretMigration re-encrypts them.
+ */
+public class SecretCipher {
+
+    public static final String PREFIX = "v2:";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final byte[] KEY_SALT = "cms-secret2-v2".getBytes(StandardCharsets.UTF_8);
+    private static final int KEY_ITERATIONS = 65536;
+
+    private static final Map<String, SecretKeySpec> keys = new ConcurrentHashMap<>();
+    private static final SecureRandom secureRandom = new SecureRandom();
+    // a Cipher is not thread safe, it is created once per thread and initialized for every value
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private SecretCipher() {
+    }
+
+    // derives the key ahead of the first request
+    public static void init(String password) {
+        getKey(password);
+    }
+
+    public static boolean isEncrypted(String text) {
+        return text.startsWith(PREFIX);
+    }
+
+    public static String encrypt(String text, String password) {
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, getKey(password), new GCMParameterSpec(TAG_LENGTH, iv));
+            byte[] encrypted = cipher.doFinal(text.getBytes(StandardCharsets.UTF_8));
+            return PREFIX + Base64.getEncoder().encodeToString(ByteBuffer.allocate(iv.length + encrypted.length)
+                    .put(iv)
+                    .put(encrypted)
+                    .array());
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    // the values without the prefix are the older Jasypt ones
+    public static String decrypt(String text, String password) {
+        if (!isEncrypted(text)) {
+            return Utils.decrypt2(text, password);
+        }
+        byte[] bytes = Base64.getDecoder().decode(text.substring(PREFIX.length()));
+        if (bytes.length < IV_LENGTH) {
+            throw new SecurityException("Invalid secret, it is too short");
+        }
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, getKey(password), new GCMParameterSpec(TAG_LENGTH, bytes, 0, IV_LENGTH));
+            return new String(cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    private static SecretKeySpec getKey(String password) {
+        return keys.computeIfAbsent(password, SecretCipher::deriveKey);
+    }
+
+    private static SecretKeySpec deriveKey(String password) {
+        try {
+            PBEKeySpec keySpec = new PBEKeySpec((password + Constants.TWO_WAY_SALT_KEY).toCharArray(), KEY_SALT, KEY_ITERATIONS, 256);
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(keySpec).getEncoded();
+            keySpec.clearPassword();
+            return new SecretKeySpec(key, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+    }
+}
@@ -26,14 +26,24 @@ import com.k8scms.cms.CmsProperties;
 import com.k8scms.cms.Constants;
 import com.k8scms.cms.SecretProperties;
 import com.k8scms.cms.model.GetOptions;
-import com.k8scms.cms.model.Permissions;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
 import io.quarkus.security.UnauthorizedException;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
 import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonWriterSettings;
 import org.bson.types.Decimal128;
 import org.eclipse.microprofile.config.ConfigProvider;
 import org.jasypt.util.text.BasicTextEncryptor;
 import org.mindrot.jbcrypt.BCrypt;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.json.bind.Jsonb;
 import javax.json.bind.JsonbBuilder;
 import javax.json.bind.JsonbConfig;
@@ -41,16 +51,22 @@ import javax.naming.Context;
 import javax.naming.NamingException;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.core.UriInfo;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.function.Function;
 import java.util.regex.Matcher;
@@ -62,12 +78,21 @@ public class Utils {
     private Utils() {
     }
 
+    // the collation of the case insensitive index of the user names, strength 2 ignores the case
+    public static final Collation USER_NAME_COLLATION = Collation.builder()
+            .locale("en")
+            .collationStrength(CollationStrength.SECONDARY)
+            .build();
+
     static Jsonb jsonb;
+    // no formatting, one document per line
+    static Jsonb jsonbLine;
 
     static {
         JsonbConfig jsonbConfig = new JsonbConfig();
         jsonbConfig.setProperty(JsonbConfig.FORMATTING, true);
         jsonb = JsonbBuilder.create(jsonbConfig);
+        jsonbLine = JsonbBuilder.create();
     }
 
     public static ToString stringify(Object o) {
@@ -78,6 +103,10 @@ public class Utils {
         return jsonb.toJson(o);
     }
 
+    public static String toJsonLine(Object o) {
+        return jsonbLine.toJson(o);
+    }
+
     public static <T> T fromJson(String data, Class<T> clazz) {
         return jsonb.fromJson(data, clazz);
     }
@@ -90,6 +119,31 @@ public class Utils {
         return new BufferedReader(new InputStreamReader(inputStream)).lines().collect(Collectors.joining("\n"));
     }
 
+    // copies the nested documents and lists, the other values are not changed in place by the cms
+    public static Document deepCopy(Document document) {
+        Document copy = new Document();
+        document.forEach((key, value) -> copy.put(key, deepCopyValue(value)));
+        return copy;
+    }
+
+    private static Object deepCopyValue(Object value) {
+        if (value instanceof Document) {
+            return deepCopy((Document) value);
+        } else if (value instanceof Map) {
+            // the nested objects of a deserialized request body
+            Map<String, Object> map = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((key, v) -> map.put(key, deepCopyValue(v)));
+            return map;
+        } else if (value instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object o : (List<Object>) value) {
+                list.add(deepCopyValue(o));
+            }
+            return list;
+        }
+        return value;
+    }
+
     public static Document documentFromUriInfo(UriInfo uriInfo) {
         Document filter = new Document();
         uriInfo.getQueryParameters().forEach(
@@ -131,12 +185,61 @@ public class Utils {
                         case Constants.QUERY_PARAM_NO_LIMIT:
                             getOptions.setNoLimit(Boolean.parseBoolean(value.toString()));
                             break;
+                        case Constants.QUERY_PARAM_FIELDS:
+                            List<?> fields = value instanceof List ? (List<?>) value : Arrays.asList(value.toString().split(","));
+                            getOptions.setFields(fields.stream()
+                                    .map(field -> field.toString().trim())
+                                    .filter(field -> !field.isEmpty())
+                                    .collect(Collectors.toList()));
+                            break;
+                        case Constants.QUERY_PARAM_AFTER:
+                            getOptions.setKeyset(true);
+                            if (value != null && !value.toString().isEmpty()) {
+                                getOptions.setAfter(decodeAfter(value.toString()));
+                            }
+                            break;
                     }
                 }
         );
         return getOptions;
     }
 
+    public static Document toDocument(BsonDocument bsonDocument) {
+        return new DocumentCodec().decode(new BsonDocumentReader(bsonDocument), DecoderContext.builder().build());
+    }
+
+    // the token keeps the bson types of the values (e.g. dates, longs) so that mongo compares them correctly
+    public static String encodeAfter(Document document, String sort) {
+        Document after = new Document();
+        after.put("sort", sort);
+        if (sort != null) {
+            after.put("value", getPathValue(document, sort));
+        }
+        after.put("_id", document.get("_id"));
+        String json = after.toJson(JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static Document decodeAfter(String after) {
+        try {
+            return Document.parse(new String(Base64.getUrlDecoder().decode(after), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException | JsonParseException e) {
+            throw new BadRequestException(String.format("Invalid %s token, the cursor does not match the sort", Constants.QUERY_PARAM_AFTER), e);
+        }
+    }
+
+    // the value of a dotted path e.g. 'address.city', null if it is missing
+    private static Object getPathValue(Document document, String path) {
+        Object value = document;
+        for (String key : path.split("\\.")) {
+            if (!(value instanceof Document)) {
+                return null;
+            }
+            value = ((Document) value).get(key);
+        }
+        return value;
+    }
+
     private static String toHexString(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
@@ -145,11 +248,13 @@ public class Utils {
         return sb.toString();
     }
 
+    // bcrypt is slow on purpose, run it with CryptoExecutor.submit
     public static String encrypt1(String text, String key) {
         String salted = createSalt(text, key);
         return hashSaltedPassword(salted, false);
     }
 
+    // bcrypt is slow on purpose, run it with CryptoExecutor.submit
     public static boolean checkEncrypt1(String text, String key, String encryptedHash) {
         String salted = createSalt(text, key);
         if (encryptedHash.length() < 3) {
@@ -181,6 +286,16 @@ public class Utils {
         return hashed;
     }
 
+    public static String hmac(byte[] key, String text) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return toHexString(mac.doFinal(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+    }
+
     public static String encrypt2(String text, String password) {
         BasicTextEncryptor encryptor = new BasicTextEncryptor();
         encryptor.setPassword(password + Constants.TWO_WAY_SALT_KEY);
@@ -220,18 +335,6 @@ public class Utils {
         return "cn=" + tokens[0] + ",dc=" + String.join(",dc=", Arrays.asList(domainTokens));
     }
 
-    public static boolean hasPermission(String cluster, String database, String collection, String method, List<Permissions> permissionsList) {
-        for (Permissions permissions : permissionsList) {
-            if (cluster.matches(permissions.getCluster()) &&
-                    database.matches(permissions.getDatabase()) &&
-                    collection.matches(permissions.getCollection()) &&
-                    method.matches(permissions.getMethod())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     public static UnauthorizedException generateUnauthorizedException(String message, String env) {
         if (env.equals(Constants.ENV_PROD)) {
             return new UnauthorizedException();
@@ -253,12 +356,46 @@ public class Utils {
         });
     }
 
-    public static boolean isCharset(String text, String charset) throws UnsupportedEncodingException {
-        return Charset.forName(charset).newEncoder().canEncode(text);
+    /**
+     * A key that is equal for values mongo considers equal in queries, numbers are compared by value regardless of
+     * their type (e.g. 1, 1L, 1.0 and Decimal128 1).
+     */
+    public static Object equalityKey(Object value) {
+        if (value instanceof Decimal128) {
+            Decimal128 decimal128 = (Decimal128) value;
+            if (decimal128.isNaN() || decimal128.isInfinite()) {
+                return value;
+            }
+            try {
+                return decimal128.bigDecimalValue().stripTrailingZeros();
+            } catch (ArithmeticException e) {
+                // -0
+                return BigDecimal.ZERO;
+            }
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return value;
+            }
+            return BigDecimal.valueOf(d).stripTrailingZeros();
+        } else if (value instanceof Number) {
+            return new BigDecimal(value.toString()).stripTrailingZeros();
+        }
+        return value;
     }
 
+    /**
+     * The names are case insensitive, the filter has to be used with {@link #getUserGetOptions()} to match them with
+     * the case insensitive index of the users (see models/cms_model_user.json).
+     */
     public static Document getUserFilter(String name) {
-        return new Document("name",
-                new Document("$regex", String.format("^%s$", name)).append("$options", "i"));
+        return new Document("name", name);
+    }
+
+    public static GetOptions getUserGetOptions() {
+        GetOptions getOptions = new GetOptions();
+        getOptions.setLimit(1);
+        getOptions.setCollation(USER_NAME_COLLATION);
+        return getOptions;
     }
 }
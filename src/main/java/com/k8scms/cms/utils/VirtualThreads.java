@@ -0,0 +1,72 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.utils;
+
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import org.eclipse.microprofile.config.ConfigProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The executor of the blocking work of the requests, the exports, the NDJSON streams and the upload lookups. With
+ * cms.virtual-threads=true on Java 21+ every task runs on its own virtual thread, so a request that waits on mongo
+ * costs a few KB instead of a worker thread. Otherwise, and on older runtimes, it is the default worker pool.
+ * <p>
+ * The LDAP checks stay on the worker pool, JNDI holds monitors while it waits on the socket and pins the carrier
+ * threads.
+ */
+public class VirtualThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private VirtualThreads() {
+    }
+
+    // created on first use, the configuration is read once
+    private static class Holder {
+        static final Executor EXECUTOR = create();
+    }
+
+    public static Executor executor() {
+        return Holder.EXECUTOR;
+    }
+
+    private static Executor create() {
+        if (!ConfigProvider.getConfig().getOptionalValue("cms.virtual-threads", Boolean.class).orElse(false)) {
+            return Infrastructure.getDefaultWorkerPool();
+        }
+        try {
+            // by reflection, the sources still build for Java 11
+            Executor executor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.info("The blocking work of the requests runs on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads require Java 21, the blocking work of the requests runs on the worker pool");
+            return Infrastructure.getDefaultWorkerPool();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.model;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RelationTemplateTest {
+
+    @Test
+    void bindsTheValuesWithTheirTypes() {
+        RelationTemplate template = new RelationTemplate("{'_id': {id}, 'createdAt': {'$gte': {from}}}", Arrays.asList("id", "from"));
+        ObjectId id = new ObjectId();
+        Date from = new Date(1600000000000L);
+        Document filter = template.bind(new Document("id", id).append("from", from));
+        assertEquals(id, filter.get("_id"));
+        assertEquals(from, ((Document) filter.get("createdAt")).get("$gte"));
+    }
+
+    @Test
+    void splicesAListIntoAnArray() {
+        RelationTemplate template = new RelationTemplate("{'name': {'$in': [{roles}, 'guest']}}", Collections.singletonList("roles"));
+        Document filter = template.bind(new Document("roles", Arrays.asList("admin", "su")));
+        assertEquals(Arrays.asList("admin", "su", "guest"), ((Document) filter.get("name")).get("$in"));
+    }
+
+    @Test
+    void everyBindIsANewFilter() {
+        RelationTemplate template = new RelationTemplate("{'name': {name}}", Collections.singletonList("name"));
+        Document first = template.bind(new Document("name", "a"));
+        Document second = template.bind(new Document("name", "b"));
+        assertEquals("a", first.get("name"));
+        assertEquals("b", second.get("name"));
+    }
+
+    @Test
+    void aMissingValueIsNull() {
+        RelationTemplate template = new RelationTemplate("{'name': {name}}", Collections.singletonList("name"));
+        Document filter = template.bind(new Document());
+        assertTrue(filter.containsKey("name"));
+        assertNull(filter.get("name"));
+    }
+
+    @Test
+    void bindsTheNumbersAndBooleansAsStringsLikeTheTextReplacement() {
+        RelationTemplate template = new RelationTemplate("{'code': {code}, 'active': {active}, 'tags': {'$in': [{tags}]}}", Arrays.asList("code", "active", "tags"));
+        Document filter = template.bind(new Document("code", 42L).append("active", true).append("tags", Arrays.asList(1, "a")));
+        assertEquals("42", filter.get("code"));
+        assertEquals("true", filter.get("active"));
+        assertEquals(Arrays.asList("1", "a"), ((Document) filter.get("tags")).get("$in"));
+    }
+
+    @Test
+    void keepsTheNumbersAsTheyAreWithTypedValues() {
+        RelationTemplate template = new RelationTemplate("{'code': {code}, 'active': {active}}", Arrays.asList("code", "active"), true);
+        Document filter = template.bind(new Document("code", 42L).append("active", true));
+        assertEquals(42L, filter.get("code"));
+        assertEquals(true, filter.get("active"));
+    }
+
+    @Test
+    void aFilterWithoutPlaceholdersHasNoSlots() {
+        RelationTemplate template = new RelationTemplate("{'active': true}", Collections.singletonList("name"));
+        assertFalse(template.hasSlots());
+        assertEquals(new Document("active", true), template.bind(new Document("name", "a")));
+    }
+}
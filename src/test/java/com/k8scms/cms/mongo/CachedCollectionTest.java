@@ -0,0 +1,142 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.mongo;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachedCollectionTest {
+
+    @Test
+    void comparesTheIdsLikeMongo() {
+        assertEquals(0, CachedCollection.compareIds(1, 1.0));
+        assertEquals(0, CachedCollection.compareIds(1L, Decimal128.parse("1")));
+        assertTrue(CachedCollection.compareIds(2, 10L) < 0);
+        assertTrue(CachedCollection.compareIds(Double.NaN, Double.NEGATIVE_INFINITY) < 0);
+        assertTrue(CachedCollection.compareIds(Double.POSITIVE_INFINITY, Double.MAX_VALUE) > 0);
+        // numbers, strings, object ids
+        assertTrue(CachedCollection.compareIds(100, "1") < 0);
+        assertTrue(CachedCollection.compareIds("z", new ObjectId()) < 0);
+    }
+
+    @Test
+    void findsInTheOrderOfTheIds() {
+        CachedCollection cachedCollection = new CachedCollection(100);
+        cachedCollection.load(cachedCollection.reload(), Arrays.asList(
+                new Document("_id", 3).append("type", "a"),
+                new Document("_id", "b").append("type", "a"),
+                new Document("_id", 1).append("type", "b"),
+                new Document("_id", 2.5).append("type", "a")));
+        List<Map<String, Set<Object>>> all = CachedCollection.toConditions(new Document());
+        assertEquals(Arrays.asList(1, 2.5, 3, "b"), ids(cachedCollection.find(all, 0, null, null)));
+        List<Map<String, Set<Object>>> typeA = CachedCollection.toConditions(new Document("type", "a"));
+        assertEquals(Arrays.asList(3, "b"), ids(cachedCollection.find(typeA, 1, 2, null)));
+        assertEquals(Collections.singletonList(2.5), ids(cachedCollection.find(typeA, 0, 1, null)));
+    }
+
+    @Test
+    void returnsCopies() {
+        CachedCollection cachedCollection = new CachedCollection(100);
+        cachedCollection.load(cachedCollection.reload(), Collections.singletonList(new Document("_id", 1).append("name", "a")));
+        List<Map<String, Set<Object>>> all = CachedCollection.toConditions(new Document());
+        cachedCollection.find(all, 0, null, null).get(0).put("name", "changed");
+        assertEquals("a", cachedCollection.find(all, 0, null, null).get(0).get("name"));
+    }
+
+    @Test
+    void tooManyDocumentsAreNotCached() {
+        CachedCollection cachedCollection = new CachedCollection(1);
+        int generation = cachedCollection.reload();
+        assertThrows(IllegalStateException.class, () -> cachedCollection.load(generation, Arrays.asList(new Document("_id", 1), new Document("_id", 2))));
+    }
+
+    @Test
+    void isNotReadWhileALocalWriteRunsAndUntilItsEventIsApplied() {
+        CachedCollection cachedCollection = new CachedCollection(100);
+        cachedCollection.load(cachedCollection.reload(), Collections.singletonList(new Document("_id", 1)));
+        assertTrue(cachedCollection.isReady());
+
+        cachedCollection.beginWrite();
+        assertFalse(cachedCollection.isReady());
+        cachedCollection.awaitWrite(new BsonTimestamp(10, 1), 0);
+        cachedCollection.endWrite();
+        assertFalse(cachedCollection.isReady());
+
+        cachedCollection.onChange(insert(2, new BsonTimestamp(9, 1)));
+        assertFalse(cachedCollection.isReady());
+        cachedCollection.onChange(insert(3, new BsonTimestamp(10, 1)));
+        assertTrue(cachedCollection.isReady());
+    }
+
+    @Test
+    void aWriteWithoutChangesIsNotWaitedFor() {
+        CachedCollection cachedCollection = new CachedCollection(100);
+        cachedCollection.load(cachedCollection.reload(), Collections.emptyList());
+        cachedCollection.beginWrite();
+        cachedCollection.awaitWrite(null, 0);
+        cachedCollection.endWrite();
+        assertTrue(cachedCollection.isReady());
+    }
+
+    @Test
+    void isLoadedAgainWhenTheEventsOfAWriteAreLate() {
+        CachedCollection cachedCollection = new CachedCollection(100);
+        cachedCollection.load(cachedCollection.reload(), Collections.emptyList());
+        cachedCollection.beginWrite();
+        cachedCollection.awaitWrite(new BsonTimestamp(10, 1), 1000);
+        cachedCollection.endWrite();
+        assertFalse(cachedCollection.isLagging(1000 + CachedCollection.MAX_EVENT_WAIT_MILLIS));
+        assertTrue(cachedCollection.isLagging(1001 + CachedCollection.MAX_EVENT_WAIT_MILLIS));
+
+        // the load reads the completed writes
+        cachedCollection.load(cachedCollection.reload(), Collections.singletonList(new Document("_id", 1)));
+        assertTrue(cachedCollection.isReady());
+        assertFalse(cachedCollection.isLagging(Long.MAX_VALUE));
+    }
+
+    private static ChangeStreamDocument<Document> insert(int id, BsonTimestamp clusterTime) {
+        BsonDocument documentKey = new BsonDocument("_id", new BsonInt32(id));
+        return new ChangeStreamDocument<>(OperationType.INSERT, null, null, null, new Document("_id", id), documentKey, clusterTime, null, null, null);
+    }
+
+    private static List<Object> ids(List<Document> documents) {
+        return documents.stream().map(document -> document.get("_id")).collect(Collectors.toList());
+    }
+}
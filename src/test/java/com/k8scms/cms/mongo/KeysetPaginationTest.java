@@ -0,0 +1,103 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.mongo;
+
+import com.k8scms.cms.model.GetOptions;
+import com.k8scms.cms.utils.Utils;
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.BadRequestException;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeysetPaginationTest {
+
+    private static BsonDocument render(Bson bson) {
+        return bson.toBsonDocument(Document.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+
+    private static GetOptions getOptions(String sort, int sortDirection, Document after) {
+        GetOptions getOptions = new GetOptions();
+        getOptions.setKeyset(true);
+        getOptions.setSort(sort);
+        getOptions.setSortDirection(sortDirection);
+        getOptions.setAfter(after);
+        return getOptions;
+    }
+
+    @Test
+    void theTokenKeepsTheTypes() {
+        ObjectId id = new ObjectId();
+        Date date = new Date(1600000000000L);
+        Document document = new Document("_id", id).append("meta", new Document("createdAt", date));
+        Document after = Utils.decodeAfter(Utils.encodeAfter(document, "meta.createdAt"));
+        assertEquals("meta.createdAt", after.getString("sort"));
+        assertEquals(date, after.get("value"));
+        assertEquals(id, after.get("_id"));
+    }
+
+    @Test
+    void aMalformedTokenIsABadRequest() {
+        assertThrows(BadRequestException.class, () -> Utils.decodeAfter("not a token"));
+        assertThrows(BadRequestException.class, () -> Utils.decodeAfter("bm90IGpzb24"));
+    }
+
+    @Test
+    void aTokenOfAnotherSortIsABadRequest() {
+        Document after = Utils.decodeAfter(Utils.encodeAfter(new Document("_id", 1).append("name", "a"), "name"));
+        assertThrows(BadRequestException.class, () -> MongoService.getAfterFilter(getOptions("code", 1, after)));
+        assertThrows(BadRequestException.class, () -> MongoService.getAfterFilter(getOptions(null, 1, after)));
+    }
+
+    @Test
+    void afterTheIdWithoutASort() {
+        Document after = Utils.decodeAfter(Utils.encodeAfter(new Document("_id", 5), null));
+        assertEquals(BsonDocument.parse("{'_id': {'$gt': 5}}"), render(MongoService.getAfterFilter(getOptions(null, 1, after))));
+        assertEquals(BsonDocument.parse("{'_id': {'$lt': 5}}"), render(MongoService.getAfterFilter(getOptions(null, -1, after))));
+    }
+
+    @Test
+    void afterTheSortValueThenTheId() {
+        Document after = Utils.decodeAfter(Utils.encodeAfter(new Document("_id", 5).append("name", "b"), "name"));
+        assertEquals(BsonDocument.parse("{'$or': [{'name': {'$gt': 'b'}}, {'$and': [{'name': 'b'}, {'_id': {'$gt': 5}}]}]}"),
+                render(MongoService.getAfterFilter(getOptions("name", 1, after))));
+        // descending, the missing values come last
+        assertEquals(BsonDocument.parse("{'$or': [{'name': {'$lt': 'b'}}, {'$and': [{'name': 'b'}, {'_id': {'$lt': 5}}]}, {'name': null}]}"),
+                render(MongoService.getAfterFilter(getOptions("name", -1, after))));
+    }
+
+    @Test
+    void afterAMissingSortValue() {
+        Document after = Utils.decodeAfter(Utils.encodeAfter(new Document("_id", 5), "name"));
+        // ascending, the missing values come first
+        assertEquals(BsonDocument.parse("{'$or': [{'name': {'$ne': null}}, {'$and': [{'name': null}, {'_id': {'$gt': 5}}]}]}"),
+                render(MongoService.getAfterFilter(getOptions("name", 1, after))));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.service;
+
+import com.k8scms.cms.CmsProperties;
+import com.k8scms.cms.SecretProperties;
+import io.quarkus.security.UnauthorizedException;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionTokensTest {
+
+    @SuppressWarnings("unchecked")
+    private static <T> T properties(Class<T> type, Map<String, Object> values) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> values.get(method.getName()));
+    }
+
+    private static SessionTokens sessionTokens(String key, int sessionTimeout) {
+        SessionTokens sessionTokens = new SessionTokens();
+        sessionTokens.cmsProperties = properties(CmsProperties.class, Map.of("getEnv", "test"));
+        sessionTokens.secretProperties = properties(SecretProperties.class, Map.of(
+                "getSessionEncryptionKey", key,
+                "getSessionTimeout", sessionTimeout));
+        sessionTokens.postConstruct();
+        return sessionTokens;
+    }
+
+    @Test
+    void verifiesItsTokens() {
+        SessionTokens sessionTokens = sessionTokens("changeit-session", 60);
+        ObjectId userId = new ObjectId();
+        String token = sessionTokens.create(userId);
+        assertTrue(SessionTokens.isToken(token));
+        assertEquals(userId, sessionTokens.verify(token));
+    }
+
+    @Test
+    void rejectsATamperedToken() {
+        SessionTokens sessionTokens = sessionTokens("changeit-session", 60);
+        String token = sessionTokens.create(new ObjectId());
+        String otherUser = token.replaceFirst("v2\\.[0-9a-f]{24}", "v2." + new ObjectId().toHexString());
+        assertThrows(UnauthorizedException.class, () -> sessionTokens.verify(otherUser));
+        String[] tokens = token.split("\\.");
+        String longer = String.join(".", tokens[0], tokens[1], String.valueOf(Long.parseLong(tokens[2]) + 1000000), tokens[3]);
+        assertThrows(UnauthorizedException.class, () -> sessionTokens.verify(longer));
+    }
+
+    @Test
+    void rejectsATokenOfAnotherKey() {
+        String token = sessionTokens("another-key", 60).create(new ObjectId());
+        assertThrows(UnauthorizedException.class, () -> sessionTokens("changeit-session", 60).verify(token));
+    }
+
+    @Test
+    void rejectsAnExpiredToken() {
+        SessionTokens sessionTokens = sessionTokens("changeit-session", -1);
+        String token = sessionTokens.create(new ObjectId());
+        assertThrows(UnauthorizedException.class, () -> sessionTokens.verify(token));
+    }
+
+    @Test
+    void rejectsMalformedTokens() {
+        SessionTokens sessionTokens = sessionTokens("changeit-session", 60);
+        assertThrows(UnauthorizedException.class, () -> sessionTokens.verify("v2."));
+        assertThrows(UnauthorizedException.class, () -> sessionTokens.verify("v2.a.b"));
+        assertThrows(UnauthorizedException.class, () -> sessionTokens.verify("v2.a.b.c.d"));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiringCacheTest {
+
+    @Test
+    void expiresAfterTheTtl() throws InterruptedException {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 50);
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void entryTtlOverridesTheCacheTtl() throws InterruptedException {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000);
+        cache.put("short", "1", 50);
+        cache.put("long", "2");
+        Thread.sleep(100);
+        assertNull(cache.get("short"));
+        assertEquals("2", cache.get("long"));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsed() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(2, 60000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // a becomes the most recently used, b is evicted
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    void zeroSizeOrTtlDisablesIt() {
+        ExpiringCache<String, String> noSize = new ExpiringCache<>(0, 60000);
+        noSize.put("a", "1");
+        assertNull(noSize.get("a"));
+        ExpiringCache<String, String> noTtl = new ExpiringCache<>(10, 0);
+        noTtl.put("a", "1");
+        assertNull(noTtl.get("a"));
+    }
+
+    @Test
+    void removesTheMatchingEntries() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000);
+        cache.put("a1", "1");
+        cache.put("a2", "2");
+        cache.put("b1", "3");
+        cache.removeIf((key, value) -> key.startsWith("a"));
+        assertNull(cache.get("a1"));
+        assertNull(cache.get("a2"));
+        assertEquals("3", cache.get("b1"));
+    }
+}
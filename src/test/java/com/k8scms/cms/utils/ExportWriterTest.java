@@ -0,0 +1,78 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.utils;
+
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExportWriterTest {
+
+    @Test
+    void csvTextsThatStartLikeFormulasArePrefixed() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ExportWriter exportWriter = ExportWriter.of(ExportWriter.FORMAT_CSV, Arrays.asList("a", "b", "c", "d", "e"), outputStream);
+        exportWriter.write(new Document("a", "=1+2").append("b", "+x").append("c", "-x").append("d", "@SUM(A1)").append("e", -5));
+        exportWriter.finish();
+
+        String csv = outputStream.toString(StandardCharsets.UTF_8);
+        assertEquals("\uFEFFa,b,c,d,e\r\n'=1+2,'+x,'-x,'@SUM(A1),-5\r\n", csv);
+    }
+
+    @Test
+    void xlsxNonFiniteNumbersAreText() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ExportWriter exportWriter = ExportWriter.of(ExportWriter.FORMAT_XLSX, Arrays.asList("a", "b", "c", "d"), outputStream);
+        exportWriter.write(new Document("a", Double.NaN).append("b", Double.NEGATIVE_INFINITY).append("c", Decimal128.POSITIVE_INFINITY).append("d", 1.5));
+        exportWriter.finish();
+
+        String sheet = sheet(outputStream.toByteArray());
+        assertTrue(sheet.contains("<c t=\"inlineStr\"><is><t xml:space=\"preserve\">NaN</t></is></c>"));
+        assertTrue(sheet.contains("<c t=\"inlineStr\"><is><t xml:space=\"preserve\">-Infinity</t></is></c>"));
+        assertTrue(sheet.contains("<c t=\"inlineStr\"><is><t xml:space=\"preserve\">Infinity</t></is></c>"));
+        assertTrue(sheet.contains("<c t=\"n\"><v>1.5</v></c>"));
+    }
+
+    private static String sheet(byte[] xlsx) throws IOException {
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(xlsx))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                if ("xl/worksheets/sheet1.xml".equals(entry.getName())) {
+                    return new String(zipInputStream.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        throw new AssertionError("no sheet");
+    }
+}
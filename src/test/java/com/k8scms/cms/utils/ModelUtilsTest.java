@@ -0,0 +1,172 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.utils;
+
+import com.k8scms.cms.SecretProperties;
+import com.k8scms.cms.model.Field;
+import com.k8scms.cms.model.Meta;
+import com.k8scms.cms.model.Model;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ModelUtilsTest {
+
+    // no Quarkus here, the validation reads its settings from the system properties
+    static {
+        System.setProperty("cms.validation-parallel-threshold", "100");
+        System.setProperty("cms.validation-parallelism", "4");
+    }
+
+    @Test
+    void anObjectIdAndAStringWithTheSameHexAreDifferentIds() {
+        ObjectId objectId = new ObjectId();
+        List<Document> documents = Arrays.asList(
+                new Document("_id", objectId),
+                new Document("_id", objectId.toHexString()),
+                new Document("_id", objectId));
+
+        ModelUtils.validate(documents, model(field("_id", Field.TYPE_OID)));
+
+        assertTrue(duplicateErrors(documents.get(0), "_id").isEmpty());
+        // the string is also reported as not an oid, but not as a duplicate
+        assertTrue(duplicateErrors(documents.get(1), "_id").isEmpty());
+        assertEquals(1, duplicateErrors(documents.get(2), "_id").size());
+    }
+
+    @Test
+    void aCompositeIdIsADuplicateOnlyWhenAllItsValuesAreEqual() {
+        List<Document> documents = Arrays.asList(
+                new Document("code", "a").append("year", 2020),
+                new Document("code", "a").append("year", 2021),
+                new Document("code", "a").append("year", "2020"),
+                new Document("code", "a").append("year", 2020));
+
+        ModelUtils.validate(documents, model(field("code", Field.TYPE_STRING), field("year", Field.TYPE_INTEGER)));
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(duplicateErrors(documents.get(i), "code,year").isEmpty(), "document " + i);
+        }
+        List<String> errors = duplicateErrors(documents.get(3), "code,year");
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).contains("composite id 'a,2020' already exists"));
+    }
+
+    @Test
+    void theParallelValidationGivesTheSameErrorsAsTheSequentialOne() {
+        Field name = field("name", Field.TYPE_STRING);
+        name.setId(false);
+        name.setRequired(true);
+        name.setRegex("[a-z]+");
+        Field count = field("count", Field.TYPE_INTEGER);
+        count.setId(false);
+        Model model = model(field("code", Field.TYPE_STRING), field("year", Field.TYPE_INTEGER), name, count);
+
+        List<Document> parallel = documents(1000);
+        ModelUtils.validate(parallel, model);
+        // the validator is the sequential validation of one document at a time
+        List<Document> sequential = documents(1000);
+        UnaryOperator<Document> validator = ModelUtils.validator(model);
+        sequential.forEach(validator::apply);
+
+        for (int i = 0; i < parallel.size(); i++) {
+            assertEquals(validationErrors(sequential.get(i)), validationErrors(parallel.get(i)), "document " + i);
+        }
+        assertFalse(duplicateErrors(parallel.get(999), "code,year").isEmpty());
+    }
+
+    @Test
+    void hashesTheSecret1FieldsOfEveryDocumentInTheOrderOfTheUpload() {
+        Field password = field("password", Field.TYPE_STRING);
+        password.setId(false);
+        password.setEncryption(Field.ENCRYPTION_SECRET1);
+        Model model = model(field("name", Field.TYPE_STRING), password);
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            documents.add(new Document("name", "user" + i).append("password", "password" + i));
+        }
+        SecretProperties secretProperties = (SecretProperties) Proxy.newProxyInstance(SecretProperties.class.getClassLoader(), new Class<?>[]{SecretProperties.class},
+                (proxy, method, args) -> "getSecretEncryptionKey".equals(method.getName()) ? "key" : null);
+
+        List<Document> encrypted = ModelUtils.encryptSecretsAsync(documents, model, secretProperties).await().indefinitely();
+
+        assertSame(documents, encrypted);
+        for (int i = 0; i < documents.size(); i++) {
+            assertEquals("user" + i, documents.get(i).get("name"));
+            assertTrue(Utils.checkEncrypt1("password" + i, "key", documents.get(i).getString("password")), "document " + i);
+        }
+    }
+
+    // duplicate composite ids, invalid, missing and unknown values, all at the same indexes on every call
+    private static List<Document> documents(int size) {
+        List<Document> documents = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Document document = new Document("code", "c" + i % 300).append("year", 2000 + i % 6);
+            if (i % 5 != 0) {
+                document.append("name", i % 11 == 0 ? "Name" + i : "name");
+            }
+            document.append("count", i % 13 == 0 ? "x" + i : i);
+            if (i % 17 == 0) {
+                document.append("other", i);
+            }
+            documents.add(document);
+        }
+        return documents;
+    }
+
+    private static Model model(Field... fields) {
+        Model model = new Model();
+        model.setFields(Arrays.asList(fields));
+        return model.compile();
+    }
+
+    private static Field field(String name, String type) {
+        Field field = new Field();
+        field.setName(name);
+        field.setType(type);
+        field.setId(true);
+        return field;
+    }
+
+    private static List<String> duplicateErrors(Document document, String key) {
+        return validationErrors(document).getOrDefault(key, List.of()).stream()
+                .filter(error -> error.contains("already exists"))
+                .collect(Collectors.toList());
+    }
+
+    private static Map<String, List<String>> validationErrors(Document document) {
+        Map<String, List<String>> errors = ((Meta) document.get("_meta")).getValidationErrors();
+        return errors == null ? Map.of() : errors;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Alexandros Gelbessis
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.k8scms.cms.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SecretCipherTest {
+
+    private static final String KEY = "changeit-password";
+
+    @Test
+    void roundTrip() {
+        String encrypted = SecretCipher.encrypt("s3cr3t ü", KEY);
+        assertTrue(encrypted.startsWith(SecretCipher.PREFIX));
+        assertTrue(SecretCipher.isEncrypted(encrypted));
+        assertEquals("s3cr3t ü", SecretCipher.decrypt(encrypted, KEY));
+    }
+
+    @Test
+    void everyValueHasItsOwnIv() {
+        assertNotEquals(SecretCipher.encrypt("s3cr3t", KEY), SecretCipher.encrypt("s3cr3t", KEY));
+    }
+
+    @Test
+    void decryptsTheLegacyJasyptValues() {
+        String legacy = Utils.encrypt2("s3cr3t", KEY);
+        assertFalse(SecretCipher.isEncrypted(legacy));
+        assertEquals("s3cr3t", SecretCipher.decrypt(legacy, KEY));
+    }
+
+    @Test
+    void rejectsAnotherKey() {
+        String encrypted = SecretCipher.encrypt("s3cr3t", KEY);
+        assertThrows(SecurityException.class, () -> SecretCipher.decrypt(encrypted, "another-key"));
+    }
+
+    @Test
+    void rejectsATamperedValue() {
+        String encrypted = SecretCipher.encrypt("s3cr3t", KEY);
+        // a bit of the tag, changing a base64 character may only change its padding bits
+        byte[] bytes = Base64.getDecoder().decode(encrypted.substring(SecretCipher.PREFIX.length()));
+        bytes[bytes.length - 1] ^= 1;
+        String tampered = SecretCipher.PREFIX + Base64.getEncoder().encodeToString(bytes);
+        assertThrows(SecurityException.class, () -> SecretCipher.decrypt(tampered, KEY));
+        assertThrows(SecurityException.class, () -> SecretCipher.decrypt(SecretCipher.PREFIX + "AAAA", KEY));
+    }
+}